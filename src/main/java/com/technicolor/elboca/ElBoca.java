@@ -2,10 +2,7 @@ package com.technicolor.elboca;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Arrays;
 import java.util.ArrayList;
 
@@ -47,6 +44,7 @@ import jenkins.model.Jenkins;
 import hudson.model.Project;
 import hudson.util.ListBoxModel;
 import hudson.model.Descriptor;
+import com.technicolor.eloyente.NodeDirectory;
 
 /** 
  * This plug-in allows projects to send pubsub events
@@ -178,14 +176,7 @@ public class ElBoca extends Builder {
 	 */
 	public void checkAndAdd(String nodename) throws XMPPException {
        		if ( nodename != null && nodename.length() != 0 ) {
-		  DiscoverItems discoverNodes = getDescriptor().mgr.discoverNodes(null); //get all nodes
-	    	  Iterator<DiscoverItems.Item> items = discoverNodes.getItems();
-	    	  Map<String, DiscoverItems.Item> nodes = new HashMap<String, DiscoverItems.Item>();
-	    	  while (items.hasNext()) {
-	            DiscoverItems.Item item = items.next();
-	            nodes.put(item.getNode(), item);
-	          }
-	          if ( !nodes.containsKey(nodename)) {
+	          if ( !getDescriptor().directory.exists(nodename)) {
 	            ConfigureForm form = new ConfigureForm(FormType.submit);
 	            form.setAccessModel(AccessModel.open);
 	            form.setDeliverPayloads(true);
@@ -194,6 +185,7 @@ public class ElBoca extends Builder {
 	            form.setPersistentItems(true);
 	            form.setPublishModel(PublishModel.open);
 	            getDescriptor().mgr.createNode(nodename, form);
+	            getDescriptor().directory.added(nodename);
 	        }
               }
 	}
@@ -278,16 +270,7 @@ public class ElBoca extends Builder {
 	}
 
 	private boolean existsNode(String key) throws XMPPException {
-		boolean nodeExists = false;
-		DiscoverItems discoverNodes = this.getDescriptor().mgr.discoverNodes(null);
-		Iterator<DiscoverItems.Item> items = discoverNodes.getItems();
-		while (items.hasNext()) {
-		  if (((DiscoverItems.Item) items.next()).getNode().equals(key)) {
-		    nodeExists = true;
-		    break;
-	          }
-		}
-		return nodeExists;
+		return this.getDescriptor().directory.exists(key);
 	} 
 	// If your plugin doesn't really define any property on Descriptor,
 	// you don't have to do this.
@@ -319,6 +302,11 @@ public class ElBoca extends Builder {
 	protected transient ConnectionConfiguration config;
 	protected transient XMPPConnection con;
 	protected transient PubSubManager mgr;
+	/**
+	 * The nodes of the xmpp server, kept when connecting again for
+	 * every build.
+	 */
+	protected final transient NodeDirectory directory = new NodeDirectory(NodeDirectory.DEFAULT_TTL);
 	
 	
 	/**
@@ -376,6 +364,8 @@ public class ElBoca extends Builder {
 	    server = formData.getString("server");
 	    user = formData.getString("user");
 	    password = formData.getString("password");
+	    // the server may have changed
+	    directory.invalidate();
 	    save();
 	    return super.configure(req, formData);
 	}
@@ -470,6 +460,7 @@ public class ElBoca extends Builder {
 	                      con.connect();
 			      con.login(getUser(), getPassword());
 	                      mgr = new PubSubManager(con);
+	                      directory.connect(con, mgr);
 	                      return true;
 	                  } catch (XMPPException ex) {
 	                      System.out.println("Failed to connect");
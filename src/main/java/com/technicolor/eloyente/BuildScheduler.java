@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the builds, retrying later when a project is already in the
+ * queue.
+ *
+ * The builds of an event carry an ElOyenteEventAction, so Jenkins schedules
+ * them at the first try. Should Jenkins still refuse a build because the
+ * project is in the queue already, the build is tried again after 1, 2, 4,
+ * 8 and 16 seconds. The retries wait in a shared ScheduledExecutorService,
+ * so no thread is blocked while the projects are waiting.
+ *
+ * The class is public so that the status page can show the retries.
+ */
+public final class BuildScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildScheduler.class.getName());
+
+    /**
+     * Number of times a build is tried again.
+     */
+    static final int RETRIES = 5;
+
+    /**
+     * A build waiting to be tried again.
+     */
+    public abstract static class Attempt implements Runnable {
+
+        private final String project;
+        private volatile int retries;
+        private volatile long due;
+        private BuildScheduler scheduler;
+
+        Attempt(String project) {
+            this.project = project;
+        }
+
+        /**
+         * Tries to schedule the build.
+         *
+         * @return false if the build has to be tried again later.
+         */
+        abstract boolean scheduleBuild();
+
+        public String getProject() {
+            return project;
+        }
+
+        /**
+         * Returns the number of times the build was tried again already.
+         */
+        public int getRetries() {
+            return retries;
+        }
+
+        /**
+         * Returns the number of milliseconds until the next try.
+         */
+        public long getDelay() {
+            return Math.max(0, due - System.currentTimeMillis());
+        }
+
+        public void run() {
+            scheduler.pending.remove(this);
+            retries++;
+            boolean done;
+            try {
+                done = scheduleBuild();
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.SEVERE, "Failed to schedule a build of " + project, ex);
+                scheduler.failed.incrementAndGet();
+                return;
+            }
+            if (done) {
+                LOGGER.log(Level.FINE, "{0} executed after {1} retries", new Object[]{project, retries});
+                scheduler.succeeded.incrementAndGet();
+            } else if (retries < RETRIES) {
+                scheduler.retryLater(this);
+            } else {
+                LOGGER.log(Level.WARNING, "Gave up scheduling a build of {0} after {1} retries", new Object[]{project, retries});
+                scheduler.failed.incrementAndGet();
+            }
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+    private final long baseDelay;
+    private final Set<Attempt> pending = Collections.newSetFromMap(new ConcurrentHashMap<Attempt, Boolean>());
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Creates a scheduler waiting 1 second before the first retry.
+     */
+    BuildScheduler() {
+        this(1000);
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param baseDelay Milliseconds to wait before the first retry, the delay
+     * doubles for each retry.
+     */
+    BuildScheduler(long baseDelay) {
+        this.baseDelay = baseDelay;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ElOyente build scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Schedules a build of a project.
+     *
+     * With the identity of the event the build always gets its own queue
+     * item. Without it the build may be merged with a build which is in the
+     * queue already, which is then not an error.
+     *
+     * @param p The project to build.
+     * @param cause The cause of the build.
+     * @param action Identity of the event, or null to allow merging.
+     */
+    void schedule(final AbstractProject p, final Cause cause, final ElOyenteEventAction action) {
+        if (action == null) {
+            boolean done = p.scheduleBuild(0, cause);
+            LOGGER.log(Level.FINE, done ? "{0} executed" : "{0} merged with the build in the queue", p.getName());
+            return;
+        }
+        boolean done = p.scheduleBuild(0, cause, action);
+        LOGGER.log(Level.FINE, "{0} executed: {1}", new Object[]{p.getName(), done});
+        if (!done && p.isInQueue()) {
+            // the queue did not consult the action, try again once the queued build left
+            retryLater(new Attempt(p.getName()) {
+                @Override
+                boolean scheduleBuild() {
+                    return p.scheduleBuild(0, cause, action);
+                }
+            });
+        }
+    }
+
+    /**
+     * Tries a build again after a delay depending on the number of tries
+     * already done.
+     */
+    void retryLater(Attempt attempt) {
+        attempt.scheduler = this;
+        long delay = baseDelay << attempt.retries;
+        attempt.due = System.currentTimeMillis() + delay;
+        pending.add(attempt);
+        executor.schedule(attempt, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the executor running the retries, which can also be used for
+     * other short delayed tasks.
+     */
+    ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns the builds waiting to be tried again.
+     */
+    List<Attempt> getPending() {
+        return new ArrayList<Attempt>(pending);
+    }
+
+    /**
+     * Returns the number of builds waiting to be tried again for a project.
+     */
+    int getPendingCount(String project) {
+        int n = 0;
+        for (Attempt a : pending) {
+            if (a.getProject().equals(project)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of builds which were scheduled after a retry.
+     */
+    long getSucceededCount() {
+        return succeeded.get();
+    }
+
+    /**
+     * Returns the number of builds which could not be scheduled.
+     */
+    long getFailedCount() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+   Copyright 2012 Technicolor
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.technicolor.eloyente;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.xpath.*;
+import org.w3c.dom.*;
+
+/**
+ * A compiled XPath expression which can be evaluated from several threads.
+ * <p>
+ * JAXP XPathExpression objects are not thread-safe, so each thread gets
+ * its own compiled copy of the expression.  The streaming filter is
+ * immutable and shared by all threads.
+ * <p>
+ * Many jobs use the same filters and variables, so compiled expressions
+ * are interned: intern() returns the same instance for the same expression
+ * string, for as long as some XPathExpressionHandler still refers to it.
+ * Unused instances are left to the garbage collector.
+ */
+
+final class CompiledExpression {
+
+	private static final ConcurrentMap<String, Ref> cache = new ConcurrentHashMap<String, Ref>();
+	private static final ReferenceQueue<CompiledExpression> released = new ReferenceQueue<CompiledExpression>();
+
+	private final String expression;
+	private final StreamingXPathFilter streamingFilter;
+	private final ThreadLocal<XPathExpression> compiled;
+
+	/**
+	 * Retrieve the compiled version of an expression
+	 * <p>
+	 * The expression is only compiled if no compiled version of it is
+	 * in use already.
+	 *
+	 * @param expression A non-empty expression in XPath notation
+	 * @return The shared compiled expression
+	 * @throws XPathExpressionException If the expression is not valid
+	 */
+	static CompiledExpression intern(String expression) throws XPathExpressionException {
+		expunge();
+		Ref ref = cache.get(expression);
+		CompiledExpression c = (null != ref ? ref.get() : null);
+		if (null != c) return c;
+
+		c = new CompiledExpression(expression);
+		Ref fresh = new Ref(c);
+		while (true) {
+			Ref old = cache.putIfAbsent(expression, fresh);
+			if (null == old) return c;
+			// another thread compiled the same expression in the meantime
+			CompiledExpression existing = old.get();
+			if (null != existing) return existing;
+			if (cache.replace(expression, old, fresh)) return c;
+		}
+	}
+
+	/**
+	 * Function to retrieve the number of expressions in the cache.
+	 * <p>
+	 * @return The number of distinct expressions currently compiled
+	 */
+	static int cacheSize() {
+		expunge();
+		return cache.size();
+	}
+
+	private static void expunge() {
+		Ref ref;
+		while (null != (ref = (Ref)released.poll())) {
+			cache.remove(ref.expression, ref);
+		}
+	}
+
+	/**
+	 * Constructor which compiles an expression
+	 * <p>
+	 * @param expression A non-empty expression in XPath notation
+	 * @throws XPathExpressionException If the expression is not valid
+	 */
+	private CompiledExpression(final String expression) throws XPathExpressionException {
+		this.expression = expression;
+		// compile once to report invalid expressions to the caller
+		compile(expression);
+		this.streamingFilter = StreamingXPathFilter.compile(expression);
+		this.compiled = new ThreadLocal<XPathExpression>() {
+			@Override
+			protected XPathExpression initialValue() {
+				try {
+					return compile(expression);
+				} catch (XPathExpressionException e) {
+					// the expression compiled fine in the constructor
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+
+	private static XPathExpression compile(String expression) throws XPathExpressionException {
+		return XPathFactory.newInstance().newXPath().compile(expression);
+	}
+
+	/**
+	 * Function to retrieve the expression.
+	 * <p>
+	 * @return The expression in XPath notation
+	 */
+	String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Function to retrieve the streaming version of the expression.
+	 * <p>
+	 * @return The streaming filter, or null if the expression is not
+	 * supported by StreamingXPathFilter
+	 */
+	StreamingXPathFilter getStreamingFilter() {
+		return streamingFilter;
+	}
+
+	/**
+	 * Evaluate the expression against a document, using the copy of the
+	 * expression which belongs to the calling thread.
+	 * <p>
+	 * @param doc The document to evaluate
+	 * @return The resulting node-set
+	 */
+	NodeList evaluate(Document doc) throws XPathExpressionException {
+		return (NodeList)compiled.get().evaluate(doc, XPathConstants.NODESET);
+	}
+
+	/**
+	 * Cache entry, which remembers its key to be removed once cleared.
+	 */
+	private static final class Ref extends WeakReference<CompiledExpression> {
+		final String expression;
+
+		Ref(CompiledExpression c) {
+			super(c, released);
+			this.expression = c.expression;
+		}
+	}
+
+}
+
+// vim: set tabstop=4 softtabstop=4 shiftwidth=4 noexpandtab :
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.SocketFactory;
+
+/**
+ * Connects to the XMPP server in the background.
+ *
+ * The connection is attempted on a thread of its own, so Jenkins does not
+ * wait for the XMPP server when it starts. A failed attempt is retried after
+ * 5 seconds, the delay doubles after each failure up to 5 minutes. Once an
+ * attempt succeeds, connected() is called to start the triggers waiting for
+ * the connection.
+ *
+ * A configuration error, such as empty fields or credentials rejected by the
+ * server, is not retried: the keeper stays FAILED until it is started again.
+ *
+ * Starting again, when the configuration changed, forgets the attempts of the
+ * previous configuration.
+ */
+abstract class ConnectionKeeper {
+
+    /**
+     * Default number of seconds to wait for the TCP connection to the server.
+     */
+    static final int DEFAULT_TIMEOUT = 10;
+
+    enum State {
+
+        /**
+         * Not started, or stopped.
+         */
+        IDLE,
+        CONNECTING,
+        /**
+         * Waiting to retry after a failure.
+         */
+        WAITING,
+        CONNECTED,
+        /**
+         * The configuration was rejected, not retried until started again.
+         */
+        FAILED
+    }
+
+    /**
+     * Creates the sockets with a connect timeout, the default sockets of
+     * Smack wait as long as the operating system does.
+     */
+    static final class TimeoutSocketFactory extends SocketFactory {
+
+        private final int timeout;
+
+        /**
+         * @param timeout Milliseconds to wait for the connection, 0 to wait
+         * forever.
+         */
+        TimeoutSocketFactory(int timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new Socket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+            return connect(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException,
+                UnknownHostException {
+            return connect(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return connect(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return connect(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+        }
+
+        private Socket connect(InetSocketAddress remote, InetSocketAddress local) throws IOException {
+            Socket socket = new Socket();
+            try {
+                if (local != null) {
+                    socket.bind(local);
+                }
+                socket.connect(remote, timeout);
+                return socket;
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectionKeeper.class.getName());
+
+    private final ScheduledExecutorService executor;
+    private final long firstRetry;
+    private final long maxRetry;
+    /**
+     * Incremented on every start, the attempts of the previous starts are
+     * dropped.
+     */
+    private int generation;
+    private int failures;
+    private volatile State state = State.IDLE;
+    private final AtomicLong attempts = new AtomicLong();
+
+    /**
+     * Creates a keeper retrying after 5 seconds, and at most after 5 minutes.
+     */
+    ConnectionKeeper() {
+        this(5000, 300000);
+    }
+
+    /**
+     * @param firstRetry Milliseconds to wait after the first failure, the
+     * delay doubles after each failure.
+     * @param maxRetry Maximum number of milliseconds to wait.
+     */
+    ConnectionKeeper(long firstRetry, long maxRetry) {
+        this(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ElOyente connector");
+                t.setDaemon(true);
+                return t;
+            }
+        }), firstRetry, maxRetry);
+    }
+
+    /**
+     * @param executor Runs the attempts, a single thread.
+     * @param firstRetry Milliseconds to wait after the first failure, the
+     * delay doubles after each failure.
+     * @param maxRetry Maximum number of milliseconds to wait.
+     */
+    ConnectionKeeper(ScheduledExecutorService executor, long firstRetry, long maxRetry) {
+        this.executor = executor;
+        this.firstRetry = firstRetry;
+        this.maxRetry = maxRetry;
+    }
+
+    /**
+     * Connects in the background, until it succeeds or it is started again.
+     */
+    synchronized void start() {
+        final int g = ++generation;
+        failures = 0;
+        state = State.CONNECTING;
+        executor.execute(new Runnable() {
+            public void run() {
+                attempt(g);
+            }
+        });
+    }
+
+    /**
+     * Stops retrying.
+     */
+    synchronized void stop() {
+        generation++;
+        state = State.IDLE;
+    }
+
+    private void attempt(final int g) {
+        synchronized (this) {
+            if (g != generation) {
+                return;
+            }
+            state = State.CONNECTING;
+        }
+        attempts.incrementAndGet();
+        State result;
+        try {
+            result = connect();
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Failed to connect to the XMPP server", ex);
+            result = State.WAITING;
+        }
+        synchronized (this) {
+            if (g != generation) {
+                return;
+            }
+            if (result == State.FAILED) {
+                state = State.FAILED;
+                LOGGER.log(Level.WARNING, "Not retrying to connect to the XMPP server until its configuration is saved");
+                return;
+            }
+            if (result != State.CONNECTED) {
+                long delay = Math.min(maxRetry, firstRetry << Math.min(failures, 20));
+                failures++;
+                state = State.WAITING;
+                LOGGER.log(Level.INFO, "Retrying to connect to the XMPP server in {0} ms", delay);
+                executor.schedule(new Runnable() {
+                    public void run() {
+                        attempt(g);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+            state = State.CONNECTED;
+        }
+        try {
+            connected();
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, "Failed to start the triggers", ex);
+        }
+    }
+
+    /**
+     * Connects to the server, on the thread of the keeper.
+     *
+     * @return CONNECTED if it succeeded, FAILED if the configuration is
+     * wrong so retrying is useless, or else WAITING to retry later.
+     */
+    abstract State connect();
+
+    /**
+     * Called on the thread of the keeper once connected.
+     */
+    abstract void connected();
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of connections attempted.
+     */
+    long getAttemptCount() {
+        return attempts.get();
+    }
+}
@@ -17,6 +17,8 @@ package com.technicolor.eloyente;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.AbstractProject;
 import hudson.model.Descriptor;
 import hudson.model.Item;
@@ -28,10 +30,23 @@ import hudson.util.ListBoxModel;
 import java.io.ObjectStreamException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.xpath.XPath;
@@ -47,7 +62,6 @@ import org.jivesoftware.smackx.packet.DiscoverItems;
 import org.jivesoftware.smackx.pubsub.LeafNode;
 import org.jivesoftware.smackx.pubsub.Node;
 import org.jivesoftware.smackx.pubsub.PubSubManager;
-import org.jivesoftware.smackx.pubsub.Subscription;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -60,6 +74,8 @@ import org.kohsuke.stapler.StaplerRequest;
  */
 public class ElOyente extends Trigger<Project> {
 
+    private static final Logger LOGGER = Logger.getLogger(ElOyente.class.getName());
+
     /**
      * Array of subscriptions for a job.
      */
@@ -71,12 +87,26 @@ public class ElOyente extends Trigger<Project> {
      *
      * A node has only one listener (it is inside the listener where we control
      * the subscriptions and schedule the builds).
+     *
+     * The map is not locked, so the events of different nodes are handled in
+     * parallel and starting or stopping a job does not delay them.
      */
-    protected static transient Map<String, ItemEventCoordinator> listeners = new HashMap<String, ItemEventCoordinator>();
+    protected static final transient ConcurrentMap<String, ItemEventCoordinator> listeners = new ConcurrentHashMap<String, ItemEventCoordinator>();
     /**
      * The project associated to the instance of the trigger.
      */
     protected transient Project project;
+    /**
+     * The builds of the events received since the trigger was stopped, which
+     * the trigger replacing it schedules, or null while the trigger is
+     * started, see stop().
+     */
+    private transient List<ItemEventCoordinator.Build> held;
+    /**
+     * Whether the trigger was stopped and nothing replaced it, then its
+     * builds are dropped.
+     */
+    private transient boolean dismissed;
 
     /**
      * Constructor for the trigger.
@@ -100,11 +130,6 @@ public class ElOyente extends Trigger<Project> {
     @Override
     public Object readResolve() throws ObjectStreamException {
         super.readResolve();
-        synchronized (listeners) {      // added by StesB
-            if (listeners == null) {    // added by StesB
-                listeners = new HashMap<String, ItemEventCoordinator>();
-            }                           //added by StesB                   
-        }                               //added by StesB
         return this;
     }
 
@@ -161,47 +186,52 @@ public class ElOyente extends Trigger<Project> {
      * It checks if there is all the information required for an XMPP connection 
      * in the main configuration, logs in, adds listeners and subscribes when required.
      *
+     * While Jenkins loads the jobs, or while the connection to the XMPP
+     * server is not established yet, the triggers are not started one by one:
+     * they are queued and all started together once the jobs are loaded and
+     * the connection established, see DescriptorImpl.startAll(Collection).
+     *
+     * When the job was saved, the trigger it replaces still listens to its
+     * nodes, see stop(). This trigger takes its place in the listeners of
+     * the nodes they share at once, so only the nodes added to the job are
+     * subscribed, and then the builds held by the old trigger are scheduled.
+     *
      * @param project The project currently being started
      * @param newInstance
      */
     @Override
     public void start(Project project, boolean newInstance) {
         DescriptorImpl desc = this.getDescriptor();
-        String server = desc.server;
-        String user = desc.user;
-        String password = desc.password;
-        XMPPConnection con = desc.xmppCon;
         this.project = project;
+        synchronized (this) {
+            dismissed = false;
+        }
 
+        if (desc.deferStart(this)) {
+            return;
+        }
+        ElOyente old = desc.takeStopped(this);
         try {
-            if (!checkAnyParameterEmpty(server, user, password)) {
-                synchronized (this.getDescriptor().xmppCon) {
-                    if (this.getDescriptor().xmppCon.isConnected()) {
-                        
-                        if (!this.getDescriptor().xmppCon.isAuthenticated()) {
-                            String pepe = Jenkins.getInstance().getRootUrl();
-                            try {
-                                this.getDescriptor().xmppCon.login(user, password, pepe);
-                            } catch (XMPPException ex) {
-                                this.getDescriptor().xmppCon.disconnect();
-                                System.err.println("Autentication failure");
-                            }
-                        }
-
-                        if(this.getDescriptor().xmppCon!=null && this.getDescriptor().xmppCon.isAuthenticated()) {
-                            addListeners(this.getDescriptor().xmppCon, user);
-                            try {
-                                subscribeIfNecessary(project);
-                            } catch (InterruptedException ex) {
-                                Logger.getLogger(ElOyente.class.getName()).log(Level.SEVERE, null, ex);
-                            }
-                        }
+            if (desc.login()) {
+                synchronized (desc.xmppCon) {
+                    addListeners(desc.xmppCon, desc.user, old);
+                    try {
+                        subscribeIfNecessary(project);
+                    } catch (InterruptedException ex) {
+                        Logger.getLogger(ElOyente.class.getName()).log(Level.SEVERE, null, ex);
                     }
                 }
             }
         } catch (XMPPException ex) {
             System.err.println();
         }
+        if (old != null) {
+            if (old != this) {
+                // only the nodes removed from the job are left
+                old.detach();
+            }
+            old.release();
+        }
     }
 
     /**
@@ -233,8 +263,7 @@ public class ElOyente extends Trigger<Project> {
      */
     private synchronized void subscribeIfNecessary(Project project) throws XMPPException, InterruptedException {
         String nodeName;
-        PubSubManager mgr = this.getDescriptor().psm;
-        if (mgr.discoverNodes(null).getItems().hasNext()) {
+        if (!this.getDescriptor().directory.getNodes().isEmpty()) {
 
             if (subscriptions != null && subscriptions.length != 0) {
                 for (int i = 0; i < subscriptions.length; i++) {
@@ -262,10 +291,11 @@ public class ElOyente extends Trigger<Project> {
      *
      *
      * @param con - The connection for which the listener will be created.
-     * @param project - The project being configured.
+     * @param old - The stopped trigger of the job which this trigger
+     * replaces, or null.
      * @throws XMPPException
      */
-    private synchronized void addListeners(Connection con, String user) throws XMPPException {
+    private synchronized void addListeners(Connection con, String user, ElOyente old) throws XMPPException {
 
         PubSubManager mgr = this.getDescriptor().psm;
 
@@ -274,22 +304,47 @@ public class ElOyente extends Trigger<Project> {
 
                 //Checking if the node exist before creating the listener
                 if (existsNode(subscriptions[i].node)) {
-                    LeafNode node = (LeafNode) mgr.getNode(subscriptions[i].node);
-                    synchronized (listeners) {
-                        //If it is already in the local variable listeners -> create a new one
-                        if (!listeners.containsKey(node.getId())) {
-                            ItemEventCoordinator itemEventCoordinator = new ItemEventCoordinator(node.getId());
-                            itemEventCoordinator.addTrigger(this);
-                            node.addItemEventListener(itemEventCoordinator);
-                            listeners.put(node.getId(), itemEventCoordinator);
-                            System.out.println("Listener added for node: " + node.getId() + " for project " + project.getName());
-                        } else {
-                            listeners.get(node.getId()).addTrigger(this);
-                            System.err.println("No need to add new listener to node " + node.getId() + " for project " + project.getName());
-                        }
-                    }
+                    listen((LeafNode) mgr.getNode(subscriptions[i].node), old);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds this trigger to the listener of a node.
+     *
+     * If it is not in the local variable listeners yet, a new listener is
+     * created and attached to the node.
+     *
+     * @param node The node.
+     * @param old The stopped trigger this trigger replaces in the listener,
+     * or null.
+     */
+    private void listen(LeafNode node, ElOyente old) {
+        String nodeName = node.getId();
+        while (true) {
+            ItemEventCoordinator itemEventCoordinator = listeners.get(nodeName);
+            if (itemEventCoordinator == null) {
+                // published with this trigger in it, so it is never seen empty
+                ItemEventCoordinator created = new ItemEventCoordinator(nodeName, this.getDescriptor());
+                created.addTrigger(this);
+                itemEventCoordinator = listeners.putIfAbsent(nodeName, created);
+                if (itemEventCoordinator == null) {
+                    this.getDescriptor().pending.cancel(nodeName);
+                    node.addItemEventListener(created);
+                    System.out.println("Listener added for node: " + nodeName + " for project " + project.getName());
+                    break;
                 }
             }
+            boolean added = (old == null || old == this)
+                    ? itemEventCoordinator.addTrigger(this)
+                    : itemEventCoordinator.replaceTrigger(old, this);
+            if (added) {
+                System.err.println("No need to add new listener to node " + nodeName + " for project " + project.getName());
+                break;
+            }
+            // the last trigger of that listener was just removed
+            listeners.remove(nodeName, itemEventCoordinator);
         }
     }
 
@@ -302,51 +357,40 @@ public class ElOyente extends Trigger<Project> {
      */
     @Override
     public void run() {
-        try {
-            runWithEnvironment(null, null, null);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(ElOyente.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        runWithEnvironment(null, null, null);
     }
 
     /**
      * Schedules a build.
      *
      * Called by the run() method it schedules a build using the environment
-     * variables of the subscriptions and setting the Quiet Period to 0.
+     * variables of the subscriptions and setting the Quiet Period to 0. The
+     * build may be merged with a build which is already in the queue.
      *
      * @param vars The environment variables to be set based on those passed by
      * the user.
      */
-    protected synchronized void runWithEnvironment(String event, String filter, EnvVars vars) throws InterruptedException {
-        Boolean done;
-        int n = 0;
-        int m = 0;
-        if (!project.getAllJobs().isEmpty()) {
-            Iterator iterator = this.project.getAllJobs().iterator();
-            while (iterator.hasNext()) {
-                Project p = ((Project) iterator.next());
-                System.out.println("Build scheduled for project: " + p.getName());
-                //When the job is already in the queue (penging to be built) we introduce a delay before scheduling the next job.
-                //For some reason this second job is not allways triggered, so we check it and if this was the case we schedule it again adding a bit mor of dealy (max 15 sec).
-                if (p.isInQueue()) {
-                    while (m <= 12) {
-                        m = (int) Math.pow(2, n);
-                        Thread.currentThread().sleep(m * 1000);
-                        System.out.println(p.getName() + " is in the queue! wait " + m + " segundos");
-                        done = p.scheduleBuild(0, new ElOyenteTriggerCause(event, filter, vars));
-                        if (!done) {
-                            n++;
-                        } else {
-                            break;
-                        }
-                    }
-                } else {
-                    done = p.scheduleBuild(0, new ElOyenteTriggerCause(event, filter, vars));
-                    System.out.println(p.getName() + " executed: " + done);
-                }
+    protected void runWithEnvironment(String event, String filter, EnvVars vars) {
+        runWithEnvironment(Collections.singletonList(event), filter, vars, null);
+    }
 
-            }
+    /**
+     * Schedules a build for one or more XMPP events.
+     *
+     * The build is scheduled with one call to the Jenkins queue, see
+     * BuildScheduler.
+     *
+     * @param events The events the build is for, more than one when they
+     * were merged by the coalescing window of the subscription.
+     * @param vars The environment variables to be set based on those passed by
+     * the user.
+     * @param action Identity of the event, so the build is not merged with a
+     * queued build, or null to allow merging.
+     */
+    protected void runWithEnvironment(List<String> events, String filter, EnvVars vars, ElOyenteEventAction action) {
+        BuildScheduler scheduler = this.getDescriptor().scheduler;
+        for (Object job : this.project.getAllJobs()) {
+            scheduler.schedule((Project) job, ElOyenteTriggerCause.forEvents(events, filter, vars), action);
         }
     }
 
@@ -363,17 +407,101 @@ public class ElOyente extends Trigger<Project> {
      * removed it will unsubscribe from that node. The start(Project, boolean)
      * method will be called after it.
      *
+     * When a job is saved, its new trigger is started right after. So the
+     * stopped trigger keeps listening during the grace period, but it holds
+     * its builds instead of scheduling them. The new trigger of the job
+     * takes its place in the listeners of the nodes they share at once,
+     * detaches it from the others and schedules the held builds, so no event
+     * is lost and no node is unsubscribed and subscribed again. If the job
+     * gets no new trigger before the grace period is over, because it was
+     * deleted or its trigger removed, the stopped trigger is detached and
+     * its held builds are dropped. The nodes nobody listens to anymore are
+     * unsubscribed once the grace period is over, see PendingUnsubscribes.
+     *
      */
     @Override
     public void stop() {
+        if (!this.getDescriptor().retire(this)) {
+            detach();
+        }
+    }
+
+    /**
+     * Holds the build of an event received since the trigger was stopped.
+     *
+     * @return false if the trigger is started, then the build must be
+     * scheduled.
+     */
+    synchronized boolean hold(ItemEventCoordinator.Build build) {
+        if (dismissed) {
+            return true;
+        }
+        if (held == null) {
+            return false;
+        }
+        held.add(build);
+        return true;
+    }
+
+    /**
+     * Holds the builds from now on, until the trigger is released or
+     * dismissed.
+     */
+    private synchronized void holdBuilds() {
+        if (held == null) {
+            held = new ArrayList<ItemEventCoordinator.Build>();
+        }
+    }
+
+    /**
+     * Schedules the held builds, the trigger replacing this one listens to
+     * the nodes now.
+     */
+    private void release() {
+        List<ItemEventCoordinator.Build> builds;
+        synchronized (this) {
+            builds = held;
+            held = null;
+        }
+        if (builds == null) {
+            return;
+        }
+        for (ItemEventCoordinator.Build build : builds) {
+            try {
+                build.schedule();
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.SEVERE, "Failed to schedule a held build", ex);
+            }
+        }
+    }
+
+    /**
+     * Detaches the trigger nothing replaced, and drops its held builds.
+     */
+    private void dismiss() {
+        int dropped;
+        synchronized (this) {
+            dismissed = true;
+            dropped = (held == null ? 0 : held.size());
+            held = null;
+        }
+        detach();
+        if (dropped > 0) {
+            LOGGER.log(Level.INFO, "Dropped {0} builds of the stopped trigger of {1}",
+                    new Object[]{dropped, project == null ? "" : project.getFullName()});
+        }
+    }
+
+    /**
+     * Removes the trigger from the listeners of its nodes, and unsubscribes
+     * from the nodes nobody listens to anymore once the grace period is over.
+     */
+    private void detach() {
 
         if (this.getDescriptor().xmppCon!=null && this.getDescriptor().xmppCon.isConnected() && this.getDescriptor().xmppCon.isAuthenticated()) {
             if (subscriptions != null && subscriptions.length != 0) {
                 String nodeName;
-                Connection con = this.getDescriptor().xmppCon;
                 PubSubManager mgr = this.getDescriptor().psm;
-                List<Subscription> subscriptionList;
-                Iterator it2;
 
                 for (int i = 0; i < subscriptions.length; i++) {
                     try {
@@ -383,38 +511,15 @@ public class ElOyente extends Trigger<Project> {
                             LeafNode n = (LeafNode) mgr.getNode(nodeName);
 
                             //Remove listener
-                            synchronized (listeners) {
-                                if (listeners.containsKey(nodeName)) {
-                                    ArrayList<ElOyente> a = listeners.get(nodeName).Triggers;
-                                    if (a.contains(this)) {
-                                        a.remove(this);
-                                    }
-
-                                    if (a.isEmpty()) {
-                                        try {
-                                            mgr.getNode(nodeName).removeItemEventListener(listeners.get(nodeName));
-                                            listeners.put(nodeName, null);
-                                            listeners.remove(nodeName);
-                                            System.out.println("The Listener of the node has been removed");
-
-                                            //Unsubscribe
-                                            subscriptionList = mgr.getSubscriptions();
-
-                                            it2 = subscriptionList.iterator();
-
-                                            while (it2.hasNext()) {
-                                                Subscription sub = (Subscription) it2.next();
-
-                                                if (sub.getNode().equals(nodeName) && sub.getJid().equals(con.getUser())) {
-                                                    n.unsubscribe(con.getUser(), sub.getId());
-                                                    break;
-                                                }
-                                            }
-
-                                        } catch (XMPPException ex) {
-                                            Logger.getLogger(ElOyente.class.getName()).log(Level.SEVERE, null, ex);
-                                        }
-                                    }
+                            ItemEventCoordinator itemEventCoordinator = listeners.get(nodeName);
+                            if (itemEventCoordinator != null && itemEventCoordinator.removeTrigger(this)) {
+                                n.removeItemEventListener(itemEventCoordinator);
+                                listeners.remove(nodeName, itemEventCoordinator);
+                                System.out.println("The Listener of the node has been removed");
+
+                                //Unsubscribe, unless another job starts listening in the meantime
+                                if (!this.getDescriptor().pending.defer(nodeName)) {
+                                    this.getDescriptor().unsubscribe(nodeName);
                                 }
                             }
 
@@ -433,26 +538,16 @@ public class ElOyente extends Trigger<Project> {
      *
      * Used to determine if a node exists.
      *
-     * It retrieves the nodes from the XMPP server's database and determines if
-     * the node wanted exists in it.
+     * It looks the node up in the nodes retrieved from the XMPP server's
+     * database, which are retrieved again once their TTL expired, see
+     * NodeDirectory.
      *
      * @param key The name of the node to look for.
      * @return nodeExists Boolean value indicating if the node exists or not.
      * @throws XMPPException
      */
     private boolean existsNode(String key) throws XMPPException {
-
-        boolean nodeExists = false;
-        DiscoverItems discoverNodes = this.getDescriptor().psm.discoverNodes(null);
-        Iterator<DiscoverItems.Item> items = discoverNodes.getItems();
-
-        while (items.hasNext()) {
-            if (((DiscoverItems.Item) items.next()).getNode().equals(key)) {
-                nodeExists = true;
-                break;
-            }
-        }
-        return nodeExists;
+        return this.getDescriptor().directory.exists(key);
     }
 
     /**
@@ -487,21 +582,156 @@ public class ElOyente extends Trigger<Project> {
         private String server;
         private String user;
         private String password;
+        /**
+         * Settings of the worker threads handling the XMPP events.
+         */
+        private int dispatcherThreads = EventDispatcher.DEFAULT_WORKERS;
+        private int dispatcherQueueSize = EventDispatcher.DEFAULT_CAPACITY;
+        private String overflowPolicy = EventDispatcher.DEFAULT_POLICY.name();
+        private String dispatchOrdering = EventDispatcher.DEFAULT_ORDERING.name();
+        private String executionMode = EventDispatcher.DEFAULT_MODE.name();
+        /**
+         * Limits of the builds per minute, 0 for no limit.
+         */
+        private int globalRateLimit;
+        private int nodeRateLimit;
+        private int jobRateLimit;
+        private String throttleAction = RateLimiter.DEFAULT_ACTION.name();
+        /**
+         * Length of the Jenkins queue above which the builds are held back,
+         * 0 to never hold them back, and below which they are resumed.
+         */
+        private int queueHighWatermark;
+        private int queueLowWatermark;
+        private String degradedMode = QueueBackpressure.DEFAULT_MODE.name();
+        /**
+         * Number of items remembered to skip the items delivered again, and
+         * for how many seconds.
+         */
+        private int dedupSize = EventDeduplicator.DEFAULT_SIZE;
+        private int dedupTtl = EventDeduplicator.DEFAULT_TTL;
+        /**
+         * Number of subscriptions of a node from which they are evaluated in
+         * parallel, 0 to always evaluate them one after another.
+         */
+        private int parallelThreshold = ParallelEvaluator.DEFAULT_THRESHOLD;
+        /**
+         * Number of seconds the nodes of the XMPP server are cached.
+         */
+        private int nodeCacheTtl = NodeDirectory.DEFAULT_TTL;
+        private int unsubscribeGrace = PendingUnsubscribes.DEFAULT_GRACE;
+        private int connectTimeout = ConnectionKeeper.DEFAULT_TIMEOUT;
+        protected transient EventDispatcher dispatcher;
+        /**
+         * Retries the builds of the projects which are in the queue already.
+         */
+        protected final transient BuildScheduler scheduler = new BuildScheduler();
+        /**
+         * Merges the events received during the coalescing window of a
+         * subscription.
+         */
+        protected final transient EventCoalescer coalescer = new EventCoalescer(scheduler.getExecutor());
+        /**
+         * Limits the number of builds scheduled for the XMPP events.
+         */
+        protected final transient RateLimiter limiter = new RateLimiter(scheduler.getExecutor(), coalescer);
+        /**
+         * Holds back the builds while the Jenkins queue is too long.
+         */
+        protected final transient QueueBackpressure backpressure = new QueueBackpressure(scheduler.getExecutor(), coalescer, limiter);
+        /**
+         * Skips the items delivered more than once.
+         */
+        protected transient EventDeduplicator deduplicator;
+        /**
+         * Evaluates the subscriptions of the nodes with many of them in
+         * parallel.
+         */
+        protected final transient ParallelEvaluator parallel = new ParallelEvaluator(ParallelEvaluator.DEFAULT_THRESHOLD);
         protected transient ConnectionConfiguration config;
         protected transient XMPPConnection xmppCon;
         protected transient PubSubManager psm;
+        /**
+         * The nodes of the XMPP server.
+         */
+        protected final transient NodeDirectory directory = new NodeDirectory(NodeDirectory.DEFAULT_TTL);
+        /**
+         * The subscriptions of the connection.
+         */
+        protected final transient SubscriptionRegistry registry = new SubscriptionRegistry();
+        /**
+         * The nodes nobody listens to anymore, unsubscribed once the grace
+         * period is over.
+         */
+        protected final transient PendingUnsubscribes pending = new PendingUnsubscribes(PendingUnsubscribes.DEFAULT_GRACE) {
+            @Override
+            void unsubscribe(String node) {
+                DescriptorImpl.this.unsubscribe(node);
+            }
+        };
+        /**
+         * The locks of the subscriptions to the nodes, a node uses the lock
+         * its name hashes to, so there are never more locks than these.
+         */
+        private final transient Object[] nodeLocks = newLocks(64);
+        /**
+         * The triggers of the saved jobs, which keep listening until the new
+         * trigger of their job replaces them, see ElOyente.stop() (Key:
+         * project name ; Value: the stopped trigger).
+         */
+        private final transient Map<String, ElOyente> stopped = new HashMap<String, ElOyente>();
+        /**
+         * Maximum number of nodes started at the same time by startAll.
+         */
+        static final int STARTUP_THREADS = 8;
+        /**
+         * The triggers started before the jobs were loaded and the connection
+         * established (Key: project name ; Value: the last trigger started).
+         */
+        private final transient Map<String, ElOyente> deferred = new LinkedHashMap<String, ElOyente>();
+        private transient boolean jobsLoaded;
+        private transient boolean connected;
+        /**
+         * Connects to the XMPP server in the background, and starts the
+         * queued triggers once connected.
+         */
+        protected final transient ConnectionKeeper keeper = new ConnectionKeeper() {
+            @Override
+            State connect() {
+                State result = connectXMPP();
+                return result == State.CONNECTED ? authenticate() : result;
+            }
+
+            @Override
+            void connected() {
+                synchronized (DescriptorImpl.this) {
+                    DescriptorImpl.this.connected = true;
+                }
+                startDeferred();
+            }
+        };
 
         /**
          * Brings the persisted configuration in the main configuration and
          * create the XMPP connection.
          *
-         * Brings the persisted configuration in the main configuration and
-         * create the XMPP connection..
+         * The connection is established in the background, so that Jenkins
+         * does not wait for the XMPP server to start, see ConnectionKeeper.
          */
         public DescriptorImpl() {
 
             load();
-            connectXMPP();
+            dispatcher = new EventDispatcher(dispatcherThreads, dispatcherQueueSize, getOverflowPolicyValue(), getDispatchOrderingValue(),
+                    getExecutionModeValue());
+            limiter.configure(globalRateLimit, nodeRateLimit, jobRateLimit, getThrottleActionValue());
+            coalescer.setLimiter(limiter);
+            coalescer.setBackpressure(backpressure);
+            backpressure.configure(queueHighWatermark, queueLowWatermark, getDegradedModeValue());
+            deduplicator = new EventDeduplicator(dedupSize, dedupTtl);
+            parallel.configure(parallelThreshold);
+            directory.configure(nodeCacheTtl);
+            pending.configure(unsubscribeGrace);
+            keeper.start();
 
         }
 
@@ -530,9 +760,11 @@ public class ElOyente extends Trigger<Project> {
          * Invoked when the global configuration page is submitted.
          *
          * When click on the "Save" button of the main configuration this method
-         * will be called. It will then stop all the jobs that are using
-         * ElOyente, get the new credentials, make them persistent and start all
-         * those jobs back with the new credentials specified.
+         * will be called. If the credentials changed, it will then stop all the
+         * jobs that are using ElOyente, get the new credentials, make them
+         * persistent and start all those jobs back with the new credentials
+         * specified. Otherwise the jobs keep their listeners and
+         * subscriptions, and only the other settings are applied.
          *
          * @param req
          * @param formData
@@ -544,14 +776,49 @@ public class ElOyente extends Trigger<Project> {
             // set that to properties and call save().
 
             synchronized (this) {
-                stopJobs();
+                String newServer = formData.getString("server");
+                String newUser = formData.getString("user");
+                String newPassword = formData.getString("password");
+                boolean reconnect = xmppCon == null || !xmppCon.isAuthenticated() || !newServer.equals(server)
+                        || !newUser.equals(user) || !newPassword.equals(password);
+                if (reconnect) {
+                    stopJobs();
+                }
 
-                server = formData.getString("server");
-                user = formData.getString("user");
-                password = formData.getString("password");
+                server = newServer;
+                user = newUser;
+                password = newPassword;
+                dispatcherThreads = formData.optInt("dispatcherThreads", EventDispatcher.DEFAULT_WORKERS);
+                dispatcherQueueSize = formData.optInt("dispatcherQueueSize", EventDispatcher.DEFAULT_CAPACITY);
+                overflowPolicy = formData.optString("overflowPolicy", EventDispatcher.DEFAULT_POLICY.name());
+                dispatchOrdering = formData.optString("dispatchOrdering", EventDispatcher.DEFAULT_ORDERING.name());
+                executionMode = formData.optString("executionMode", EventDispatcher.DEFAULT_MODE.name());
+                dispatcher.configure(dispatcherThreads, dispatcherQueueSize, getOverflowPolicyValue(), getDispatchOrderingValue(),
+                        getExecutionModeValue());
+                globalRateLimit = formData.optInt("globalRateLimit", 0);
+                nodeRateLimit = formData.optInt("nodeRateLimit", 0);
+                jobRateLimit = formData.optInt("jobRateLimit", 0);
+                throttleAction = formData.optString("throttleAction", RateLimiter.DEFAULT_ACTION.name());
+                limiter.configure(globalRateLimit, nodeRateLimit, jobRateLimit, getThrottleActionValue());
+                queueHighWatermark = formData.optInt("queueHighWatermark", 0);
+                queueLowWatermark = formData.optInt("queueLowWatermark", 0);
+                degradedMode = formData.optString("degradedMode", QueueBackpressure.DEFAULT_MODE.name());
+                backpressure.configure(queueHighWatermark, queueLowWatermark, getDegradedModeValue());
+                dedupSize = formData.optInt("dedupSize", EventDeduplicator.DEFAULT_SIZE);
+                dedupTtl = formData.optInt("dedupTtl", EventDeduplicator.DEFAULT_TTL);
+                deduplicator.configure(dedupSize, dedupTtl);
+                parallelThreshold = formData.optInt("parallelThreshold", ParallelEvaluator.DEFAULT_THRESHOLD);
+                parallel.configure(parallelThreshold);
+                nodeCacheTtl = formData.optInt("nodeCacheTtl", NodeDirectory.DEFAULT_TTL);
+                directory.configure(nodeCacheTtl);
+                unsubscribeGrace = formData.optInt("unsubscribeGrace", PendingUnsubscribes.DEFAULT_GRACE);
+                connectTimeout = formData.optInt("connectTimeout", ConnectionKeeper.DEFAULT_TIMEOUT);
+                pending.configure(unsubscribeGrace);
 
                 save();
-                startJobs();
+                if (reconnect) {
+                    startJobs();
+                }
             }
 
             return super.configure(req, formData);
@@ -560,118 +827,417 @@ public class ElOyente extends Trigger<Project> {
         /**
          * This method checks which jobs are using ElOyente and stop them.
          *
-         * It calls the method stop() of all the jobs that are using the trigger
-         * in order to remove the subscriptions, listeners, etc.
+         * It detaches the triggers of all the jobs that are using ElOyente in
+         * order to remove the subscriptions, listeners, etc, and queues them to
+         * be started again once the new connection is established.
          */
         private void stopJobs() {
-            if (xmppCon != null && xmppCon.isConnected() && xmppCon.isAuthenticated()) {
-                Iterator it2 = Jenkins.getInstance().getItems().iterator();
-                while (it2.hasNext()) {
-                    AbstractProject job = (AbstractProject) it2.next();
-                    ElOyente instance = (ElOyente) job.getTriggers().get(this);
-                    if (instance != null) {
-                        System.out.println("Stopping job: " + job.getName());
-                        instance.stop();
+            keeper.stop();
+            synchronized (this) {
+                connected = false;
+            }
+            boolean authenticated = xmppCon != null && xmppCon.isConnected() && xmppCon.isAuthenticated();
+            List<ElOyente> retired;
+            synchronized (this) {
+                retired = new ArrayList<ElOyente>(stopped.values());
+                stopped.clear();
+            }
+            for (ElOyente trigger : retired) {
+                trigger.dismiss();
+            }
+            Iterator it2 = Jenkins.getInstance().getItems().iterator();
+            while (it2.hasNext()) {
+                AbstractProject job = (AbstractProject) it2.next();
+                ElOyente instance = (ElOyente) job.getTriggers().get(this);
+                if (instance != null) {
+                    System.out.println("Stopping job: " + job.getName());
+                    if (authenticated) {
+                        instance.detach();
                     }
+                    // started again on the new connection
+                    instance.project = (Project) job;
+                    deferStart(instance);
                 }
+            }
+            if (authenticated) {
+                pending.flush();
                 xmppCon.disconnect();
             }
         }
 
         /**
-         * This method checks which jobs are using ElOyente and start them back.
+         * This method starts the jobs that are using ElOyente back.
          *
-         * It calls the method start() of all the jobs that are using the
-         * trigger in order to connect to the server with the new credentials
-         * and reset the subscriptions, listeners, etc.
+         * It connects to the server with the new credentials in the
+         * background, the jobs stopped by stopJobs() are started once
+         * connected.
          */
         private void startJobs() {
-            if (connectXMPP()) {
-                Iterator it2 = Jenkins.getInstance().getItems().iterator();
-                while (it2.hasNext()) {
-                    AbstractProject job = (AbstractProject) it2.next();
-                    ElOyente instance = (ElOyente) job.getTriggers().get(this);
-                    if (instance != null) {
-                        System.out.println("Starting job: " + job.getName());
-                        instance.start((Project)job, true);
+            keeper.start();
+        }
+
+        /**
+         * Queues a trigger to be started with the others once Jenkins loaded
+         * all the jobs and the connection is established.
+         *
+         * @return false if the jobs are loaded and the connection is
+         * established already, then the trigger must be started at once.
+         */
+        synchronized boolean deferStart(ElOyente trigger) {
+            if (jobsLoaded && connected) {
+                return false;
+            }
+            deferred.put(trigger.project.getFullName(), trigger);
+            return true;
+        }
+
+        synchronized int getQueuedTriggerCount() {
+            return deferred.size();
+        }
+
+        /**
+         * Keeps a stopped trigger listening, holding its builds, until the
+         * new trigger of its job replaces it or the grace period is over.
+         *
+         * @return false if the trigger must be detached at once: it was not
+         * started, or there is no grace period.
+         */
+        boolean retire(final ElOyente trigger) {
+            if (trigger.project == null) {
+                return false;
+            }
+            final String name = trigger.project.getFullName();
+            ElOyente previous;
+            synchronized (this) {
+                if (!jobsLoaded || !connected) {
+                    return false;
+                }
+                if (!pending.delay(new Runnable() {
+                    public void run() {
+                        expire(name, trigger);
                     }
+                })) {
+                    return false;
                 }
+                trigger.holdBuilds();
+                previous = stopped.put(name, trigger);
+            }
+            if (previous != null && previous != trigger) {
+                previous.dismiss();
             }
+            return true;
         }
 
         /**
-         * Used to create the XMPP connection.
+         * Returns the stopped trigger of the job of a trigger being started,
+         * which it replaces, or null.
+         */
+        synchronized ElOyente takeStopped(ElOyente trigger) {
+            return trigger.project == null ? null : stopped.remove(trigger.project.getFullName());
+        }
+
+        /**
+         * Dismisses a stopped trigger nothing replaced during the grace
+         * period.
+         */
+        private void expire(String name, ElOyente trigger) {
+            synchronized (this) {
+                if (stopped.get(name) != trigger) {
+                    return;
+                }
+                stopped.remove(name);
+            }
+            trigger.dismiss();
+        }
+
+        synchronized int getStoppedTriggerCount() {
+            return stopped.size();
+        }
+
+        /**
+         * Starts the triggers of all the jobs once they are loaded.
+         */
+        @Initializer(after = InitMilestone.JOB_LOADED)
+        public static void onJobsLoaded() {
+            DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(DescriptorImpl.class);
+            synchronized (descriptor) {
+                descriptor.jobsLoaded = true;
+            }
+            descriptor.startDeferred();
+        }
+
+        /**
+         * Starts the queued triggers, if the jobs are loaded and the connection
+         * is established.
+         */
+        private void startDeferred() {
+            List<ElOyente> triggers;
+            synchronized (this) {
+                if (!jobsLoaded || !connected) {
+                    return;
+                }
+                triggers = new ArrayList<ElOyente>(deferred.values());
+                deferred.clear();
+            }
+            startAll(triggers);
+        }
+
+        /**
+         * Starts many triggers at once.
          *
-         * This method is called when Jenkins is started or when there are
-         * changes in the main configuration. It creates a new XMPP connection.
+         * The nodes and the subscriptions are retrieved once for all the
+         * triggers. Then every node is handled by one task: its listener is
+         * added for all the triggers of the node, and the connection is
+         * subscribed to it if necessary. The tasks run in parallel, so the
+         * time it takes depends on the number of nodes rather than on the
+         * number of jobs.
          *
-         * @return Boolean indicating if it was possible to establish a
-         * connection or not.
+         * @param triggers The triggers, whose project is set.
          */
-        private synchronized boolean connectXMPP() {
-            if (server != null && !server.isEmpty() && user != null && !user.isEmpty() && password != null && !password.isEmpty()) {
-                config = new ConnectionConfiguration(server);
-                xmppCon = new XMPPConnection(config);
+        void startAll(Collection<ElOyente> triggers) {
+            if (triggers.isEmpty() || !login()) {
+                return;
+            }
+            try {
+                directory.invalidate();
+                Set<String> nodes = directory.getNodes();
+                registry.reconcile();
+                Map<String, Set<ElOyente>> byNode = new LinkedHashMap<String, Set<ElOyente>>();
+                for (ElOyente trigger : triggers) {
+                    for (SubscriptionProperties subs : trigger.getSubscriptions()) {
+                        String node = subs.getNode();
+                        if (node == null || !nodes.contains(node)) {
+                            continue;
+                        }
+                        Set<ElOyente> t = byNode.get(node);
+                        if (t == null) {
+                            t = new LinkedHashSet<ElOyente>();
+                            byNode.put(node, t);
+                        }
+                        t.add(trigger);
+                    }
+                }
+                if (byNode.isEmpty()) {
+                    return;
+                }
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                for (final Map.Entry<String, Set<ElOyente>> e : byNode.entrySet()) {
+                    tasks.add(new Callable<Void>() {
+                        public Void call() throws XMPPException {
+                            startNode(e.getKey(), e.getValue());
+                            return null;
+                        }
+                    });
+                }
+                ExecutorService pool = Executors.newFixedThreadPool(Math.min(STARTUP_THREADS, tasks.size()));
+                try {
+                    for (Future<Void> f : pool.invokeAll(tasks)) {
+                        try {
+                            f.get();
+                        } catch (ExecutionException ex) {
+                            Logger.getLogger(ElOyente.class.getName()).log(Level.SEVERE, "Failed to start a node", ex.getCause());
+                        }
+                    }
+                } finally {
+                    pool.shutdown();
+                }
+                LOGGER.log(Level.INFO, "Started {0} jobs listening to {1} nodes", new Object[]{triggers.size(), byNode.size()});
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (XMPPException ex) {
+                Logger.getLogger(ElOyente.class.getName()).log(Level.SEVERE, "Failed to start the jobs", ex);
+            }
+        }
+
+        /**
+         * Adds the listener of a node for some triggers, and subscribes to the
+         * node if necessary.
+         */
+        private void startNode(String nodeName, Set<ElOyente> triggers) throws XMPPException {
+            LeafNode node = (LeafNode) psm.getNode(nodeName);
+            for (ElOyente trigger : triggers) {
+                trigger.listen(node, null);
+            }
+            checkAndAddSubscription(nodeName);
+        }
+
+        /**
+         * Logs in to the XMPP server if the connection is not authenticated
+         * yet.
+         *
+         * @return true if the connection is authenticated.
+         */
+        boolean login() {
+            return authenticate() == ConnectionKeeper.State.CONNECTED;
+        }
 
-                if (!xmppCon.isConnected()) {
+        /**
+         * Logs in to the XMPP server if the connection is not authenticated
+         * yet.
+         *
+         * The connection and the credentials are read under the lock of the
+         * descriptor, which connectXMPP() replaces them under.
+         *
+         * @return CONNECTED if the connection is authenticated, FAILED if the
+         * fields are empty or the server rejected the credentials, WAITING if
+         * there is no connection.
+         */
+        private ConnectionKeeper.State authenticate() {
+            XMPPConnection con;
+            String u;
+            String p;
+            synchronized (this) {
+                if (checkAnyParameterEmpty(server, user, password)) {
+                    return ConnectionKeeper.State.FAILED;
+                }
+                if (xmppCon == null) {
+                    return ConnectionKeeper.State.WAITING;
+                }
+                con = xmppCon;
+                u = user;
+                p = password;
+            }
+            synchronized (con) {
+                if (!con.isConnected()) {
+                    return ConnectionKeeper.State.WAITING;
+                }
+                if (!con.isAuthenticated()) {
+                    String pepe = Jenkins.getInstance().getRootUrl();
                     try {
-                        xmppCon.connect();
-                        psm = new PubSubManager(xmppCon);
-                        return true;
+                        con.login(u, p, pepe);
                     } catch (XMPPException ex) {
-                        System.out.println("Failed to connect");
-                        return false;
+                        con.disconnect();
+                        LOGGER.log(Level.WARNING, "The XMPP server rejected the login of {0}: {1}", new Object[]{u, ex.getMessage()});
+                        return ConnectionKeeper.State.FAILED;
                     }
-                } else {
-                    System.out.println("Already connected");
-                    return true;
                 }
-            } else {
-                System.out.println("Empty fields in main configuration!");
-                return false;
+                return con.isAuthenticated() ? ConnectionKeeper.State.CONNECTED : ConnectionKeeper.State.FAILED;
+            }
+        }
+
+        /**
+         * Used to create the XMPP connection.
+         *
+         * This method is called by the ConnectionKeeper when Jenkins is
+         * started or when there are changes in the main configuration. It
+         * creates a new XMPP connection, waiting at most connectTimeout
+         * seconds for the server. The lock of the descriptor is not held while
+         * connecting.
+         *
+         * @return CONNECTED if the connection is established, FAILED if a
+         * field of the main configuration is empty, WAITING to try again
+         * later.
+         */
+        private ConnectionKeeper.State connectXMPP() {
+            String s;
+            int timeout;
+            synchronized (this) {
+                if (checkAnyParameterEmpty(server, user, password)) {
+                    LOGGER.log(Level.WARNING, "Empty fields in main configuration!");
+                    return ConnectionKeeper.State.FAILED;
+                }
+                s = server;
+                timeout = connectTimeout;
+            }
+            ConnectionConfiguration c = new ConnectionConfiguration(s);
+            c.setSocketFactory(new ConnectionKeeper.TimeoutSocketFactory((int) TimeUnit.SECONDS.toMillis(Math.max(0, timeout))));
+            XMPPConnection con = new XMPPConnection(c);
+            try {
+                con.connect();
+            } catch (XMPPException ex) {
+                LOGGER.log(Level.INFO, "Failed to connect to {0}: {1}", new Object[]{s, ex.getMessage()});
+                return ConnectionKeeper.State.WAITING;
+            }
+            synchronized (this) {
+                if (xmppCon != null && xmppCon.isConnected()) {
+                    xmppCon.disconnect();
+                }
+                config = c;
+                xmppCon = con;
+                psm = new PubSubManager(xmppCon);
+                // the nodes may have changed while disconnected
+                directory.invalidate();
+                directory.connect(xmppCon, psm);
+                registry.connect(xmppCon, psm);
             }
+            return ConnectionKeeper.State.CONNECTED;
         }
 
         /**
          * Check if the the connections has already a subscription for that node
          * and subscribes it if not.
          *
-         * This method is called in subscribeIfNecessary
+         * This method is called in subscribeIfNecessary and startAll. The
+         * check and the subscription are made under the lock of the node, so
+         * two threads cannot both subscribe to it, while the other nodes are
+         * subscribed in parallel.
+         *
+         */
+        protected void checkAndAddSubscription(String nodeName) throws XMPPException {
+            if (nodeName.equals("")) {
+                return;
+            }
+            synchronized (nodeLock(nodeName)) {
+                if (!isSubscribed(nodeName)) {
+                    Node node = psm.getNode(nodeName);
+                    String JID = xmppCon.getUser();
+                    registry.subscribed(nodeName, node.subscribe(JID));
+                    System.out.println("Project subscribed to node " + node.getId());
+                }
+            }
+        }
+
+        private static Object[] newLocks(int n) {
+            Object[] locks = new Object[n];
+            for (int i = 0; i < n; i++) {
+                locks[i] = new Object();
+            }
+            return locks;
+        }
+
+        /**
+         * Returns the lock of the subscription to a node, shared with the
+         * nodes whose name hashes to the same lock.
+         */
+        private Object nodeLock(String nodeName) {
+            return nodeLocks[(nodeName.hashCode() & Integer.MAX_VALUE) % nodeLocks.length];
+        }
+
+        /**
+         * Unsubscribes from a node, unless a trigger listens to it again.
          *
+         * This method is called by PendingUnsubscribes once the grace period
+         * is over, and by ElOyente.detach() when there is none.
          */
-        protected synchronized void checkAndAddSubscription(String nodeName) throws XMPPException {
-            if (!isSubscribed(nodeName) && !nodeName.equals("")) {
-                Node node = psm.getNode(nodeName);
-                String JID = xmppCon.getUser();
-                psm.getNode(nodeName).subscribe(JID);
-                System.out.println("Project subscribed to node " + node.getId());
+        protected void unsubscribe(String nodeName) {
+            synchronized (nodeLock(nodeName)) {
+                if (listeners.containsKey(nodeName) || xmppCon == null || !xmppCon.isAuthenticated()) {
+                    return;
+                }
+                try {
+                    String subId = registry.getSubscriptionId(nodeName);
+                    if (subId != null) {
+                        psm.getNode(nodeName).unsubscribe(xmppCon.getUser(), subId.isEmpty() ? null : subId);
+                        registry.unsubscribed(nodeName);
+                        LOGGER.log(Level.FINE, "Project unsubscribed from node {0}", nodeName);
+                    }
+                } catch (XMPPException ex) {
+                    Logger.getLogger(ElOyente.class.getName()).log(Level.SEVERE, null, ex);
+                }
             }
         }
 
         /**
          * Checks if there exists already a subscription to the node specified.
          *
+         * The subscriptions are recorded locally, see SubscriptionRegistry.
+         *
          * @param nodeName Name of the node.
          * @return Boolean that indicates if subscribed.
          * @throws XMPPException
          */
         private boolean isSubscribed(String nodeName) throws XMPPException {
-
-            List<Subscription> subscriptionList;
-            Iterator it2;
-
-            subscriptionList = psm.getSubscriptions();
-            it2 = subscriptionList.iterator();
-
-            while (it2.hasNext()) {
-                Subscription sub = (Subscription) it2.next();
-
-                if (sub.getNode().equals(nodeName) && sub.getJid().equals(xmppCon.getUser())) {
-                    return true;
-                }
-            }
-
-            return false;
+            return registry.isSubscribed(nodeName);
         }
 
         /**
@@ -707,6 +1273,343 @@ public class ElOyente extends Trigger<Project> {
             return password;
         }
 
+        /**
+         * This method returns the number of threads handling the XMPP events.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * dispatcherThreads.
+         *
+         */
+        public synchronized int getDispatcherThreads() {
+            return dispatcherThreads;
+        }
+
+        /**
+         * This method returns the number of XMPP events which can wait for a
+         * thread.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * dispatcherQueueSize.
+         *
+         */
+        public synchronized int getDispatcherQueueSize() {
+            return dispatcherQueueSize;
+        }
+
+        /**
+         * This method returns what to do with an XMPP event when the queue is
+         * full.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * overflowPolicy.
+         *
+         */
+        public synchronized String getOverflowPolicy() {
+            return getOverflowPolicyValue().name();
+        }
+
+        /**
+         * Returns the overflow policies, for the drop-down of global.jelly.
+         */
+        public ListBoxModel doFillOverflowPolicyItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (EventDispatcher.OverflowPolicy p : EventDispatcher.OverflowPolicy.values()) {
+                items.add(p.name());
+            }
+            return items;
+        }
+
+        /**
+         * This method returns which XMPP events are handled in the order they
+         * were published.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * dispatchOrdering.
+         *
+         */
+        public synchronized String getDispatchOrdering() {
+            return getDispatchOrderingValue().name();
+        }
+
+        /**
+         * Returns the orderings, for the drop-down of global.jelly.
+         */
+        public ListBoxModel doFillDispatchOrderingItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (EventDispatcher.Ordering o : EventDispatcher.Ordering.values()) {
+                items.add(o.name());
+            }
+            return items;
+        }
+
+        /**
+         * This method returns which threads handle the XMPP events.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * executionMode.
+         *
+         */
+        public synchronized String getExecutionMode() {
+            return getExecutionModeValue().name();
+        }
+
+        /**
+         * Returns the execution modes, for the drop-down of global.jelly.
+         */
+        public ListBoxModel doFillExecutionModeItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (EventDispatcher.ExecutionMode m : EventDispatcher.ExecutionMode.values()) {
+                items.add(m.name());
+            }
+            return items;
+        }
+
+        /**
+         * This method returns the maximum number of builds per minute for all
+         * the nodes together, 0 for no limit.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * globalRateLimit.
+         *
+         */
+        public synchronized int getGlobalRateLimit() {
+            return globalRateLimit;
+        }
+
+        /**
+         * This method returns the maximum number of builds per minute for
+         * each node, 0 for no limit.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * nodeRateLimit.
+         *
+         */
+        public synchronized int getNodeRateLimit() {
+            return nodeRateLimit;
+        }
+
+        /**
+         * This method returns the maximum number of builds per minute for
+         * each job, 0 for no limit.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * jobRateLimit.
+         *
+         */
+        public synchronized int getJobRateLimit() {
+            return jobRateLimit;
+        }
+
+        /**
+         * This method returns what to do with a build exceeding a limit.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * throttleAction.
+         *
+         */
+        public synchronized String getThrottleAction() {
+            return getThrottleActionValue().name();
+        }
+
+        /**
+         * Returns the throttle actions, for the drop-down of global.jelly.
+         */
+        public ListBoxModel doFillThrottleActionItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (RateLimiter.ThrottleAction a : RateLimiter.ThrottleAction.values()) {
+                items.add(a.name());
+            }
+            return items;
+        }
+
+        private RateLimiter.ThrottleAction getThrottleActionValue() {
+            try {
+                return RateLimiter.ThrottleAction.valueOf(throttleAction);
+            } catch (RuntimeException ex) {
+                return RateLimiter.DEFAULT_ACTION;
+            }
+        }
+
+        /**
+         * This method returns the length of the Jenkins queue above which
+         * the builds are held back, 0 to never hold them back.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * queueHighWatermark.
+         *
+         */
+        public synchronized int getQueueHighWatermark() {
+            return queueHighWatermark;
+        }
+
+        /**
+         * This method returns the length of the Jenkins queue below which
+         * the builds are resumed.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * queueLowWatermark.
+         *
+         */
+        public synchronized int getQueueLowWatermark() {
+            return queueLowWatermark;
+        }
+
+        /**
+         * This method returns what happens with the builds while the Jenkins
+         * queue is too long.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * degradedMode.
+         *
+         */
+        public synchronized String getDegradedMode() {
+            return getDegradedModeValue().name();
+        }
+
+        /**
+         * Returns the degraded modes, for the drop-down of global.jelly.
+         */
+        public ListBoxModel doFillDegradedModeItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (QueueBackpressure.DegradedMode m : QueueBackpressure.DegradedMode.values()) {
+                items.add(m.name());
+            }
+            return items;
+        }
+
+        private QueueBackpressure.DegradedMode getDegradedModeValue() {
+            try {
+                return QueueBackpressure.DegradedMode.valueOf(degradedMode);
+            } catch (RuntimeException ex) {
+                return QueueBackpressure.DEFAULT_MODE;
+            }
+        }
+
+        /**
+         * This method returns the number of items remembered to skip the
+         * items delivered again, 0 to never skip them.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * dedupSize.
+         *
+         */
+        public synchronized int getDedupSize() {
+            return dedupSize;
+        }
+
+        /**
+         * This method returns for how many seconds the items are remembered.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * dedupTtl.
+         *
+         */
+        public synchronized int getDedupTtl() {
+            return dedupTtl;
+        }
+
+        /**
+         * This method returns the number of subscriptions of a node from which
+         * they are evaluated in parallel, 0 to never do it.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * parallelThreshold.
+         *
+         */
+        public synchronized int getParallelThreshold() {
+            return parallelThreshold;
+        }
+
+        /**
+         * This method returns the number of seconds the nodes of the XMPP
+         * server are cached.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * nodeCacheTtl.
+         *
+         */
+        public synchronized int getNodeCacheTtl() {
+            return nodeCacheTtl;
+        }
+
+        /**
+         * This method returns the number of seconds the trigger of a saved job
+         * keeps listening, waiting for the new trigger of the job.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * unsubscribeGrace.
+         *
+         */
+        public synchronized int getUnsubscribeGrace() {
+            return unsubscribeGrace;
+        }
+
+        /**
+         * This method returns the number of seconds to wait for the XMPP
+         * server when connecting.
+         *
+         *
+         * global.jelly calls this method to obtain the value of field
+         * connectTimeout.
+         *
+         */
+        public synchronized int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        /**
+         * Returns the merge policies of the coalescing window, for the
+         * drop-down of config.jelly.
+         */
+        public List<String> getMergePolicies() {
+            List<String> policies = new ArrayList<String>();
+            for (EventCoalescer.MergePolicy p : EventCoalescer.MergePolicy.values()) {
+                policies.add(p.name());
+            }
+            return policies;
+        }
+
+        private EventDispatcher.OverflowPolicy getOverflowPolicyValue() {
+            try {
+                return EventDispatcher.OverflowPolicy.valueOf(overflowPolicy);
+            } catch (RuntimeException ex) {
+                return EventDispatcher.DEFAULT_POLICY;
+            }
+        }
+
+        private EventDispatcher.ExecutionMode getExecutionModeValue() {
+            try {
+                return EventDispatcher.ExecutionMode.valueOf(executionMode);
+            } catch (RuntimeException ex) {
+                return EventDispatcher.DEFAULT_MODE;
+            }
+        }
+
+        private EventDispatcher.Ordering getDispatchOrderingValue() {
+            try {
+                return EventDispatcher.Ordering.valueOf(dispatchOrdering);
+            } catch (RuntimeException ex) {
+                return EventDispatcher.DEFAULT_ORDERING;
+            }
+        }
+
         /**
          * Performs on-the-fly validation of the form field 'server'.
          *
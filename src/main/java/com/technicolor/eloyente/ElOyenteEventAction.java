@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import hudson.model.Action;
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import java.util.List;
+
+/**
+ * Identity of the XMPP event a build was scheduled for.
+ *
+ * Jenkins merges a new build into a build of the same project which is
+ * already waiting in the queue, unless the queued build has an action saying
+ * otherwise. Every event gets its own action, so distinct events are never
+ * merged and the build is scheduled at the first try.
+ */
+public class ElOyenteEventAction extends InvisibleAction implements Queue.QueueAction {
+
+    private final String node;
+    private final String itemId;
+
+    /**
+     * Creates the action of an event.
+     *
+     * @param node The node the event was published on.
+     * @param itemId The id of the published item, can be null.
+     */
+    public ElOyenteEventAction(String node, String itemId) {
+        this.node = node;
+        this.itemId = itemId;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public String getItemId() {
+        return itemId;
+    }
+
+    /**
+     * Always schedules a new build, a queued build is never reused for
+     * another event.
+     */
+    public boolean shouldSchedule(List<Action> actions) {
+        return true;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jenkins.model.Jenkins;
+
+/**
+ * Status page of the XMPP event handling, linked from "Manage Jenkins".
+ *
+ * It shows the nodes listened to, the state of the threads handling the
+ * events and the builds waiting to be tried again.
+ */
+@Extension
+public class ElOyenteStatus extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "eloyente";
+    }
+
+    public String getDisplayName() {
+        return "XMPP Pub/Sub Status";
+    }
+
+    @Override
+    public String getDescription() {
+        return "State of the XMPP event handling and of the builds waiting to be scheduled.";
+    }
+
+    private static ElOyente.DescriptorImpl getDescriptor() {
+        return Jenkins.getInstance().getDescriptorByType(ElOyente.DescriptorImpl.class);
+    }
+
+    /**
+     * Returns the number of triggers listening to each node.
+     */
+    public Map<String, Integer> getListeners() {
+        Map<String, Integer> listeners = new TreeMap<String, Integer>();
+        for (Map.Entry<String, ItemEventCoordinator> e : ElOyente.listeners.entrySet()) {
+            listeners.put(e.getKey(), e.getValue().getTriggers().size());
+        }
+        return listeners;
+    }
+
+    public int getKnownNodes() {
+        return getDescriptor().directory.getSize();
+    }
+
+    public long getNodeLookupCount() {
+        return getDescriptor().directory.getLookupCount();
+    }
+
+    /**
+     * Returns the number of times the nodes were retrieved from the server.
+     */
+    public long getNodeDiscoveryCount() {
+        return getDescriptor().directory.getDiscoveryCount();
+    }
+
+    public int getSubscribedNodes() {
+        return getDescriptor().registry.getSize();
+    }
+
+    /**
+     * Returns the number of times the subscriptions were retrieved from the
+     * server.
+     */
+    public long getSubscriptionReconciliations() {
+        return getDescriptor().registry.getReconciliationCount();
+    }
+
+    /**
+     * Returns the state of the connection to the XMPP server.
+     */
+    public String getConnectionState() {
+        return getDescriptor().keeper.getState().name();
+    }
+
+    public long getConnectionAttempts() {
+        return getDescriptor().keeper.getAttemptCount();
+    }
+
+    /**
+     * Returns the number of triggers waiting for the jobs to be loaded or for
+     * the connection.
+     */
+    public int getQueuedTriggers() {
+        return getDescriptor().getQueuedTriggerCount();
+    }
+
+    /**
+     * Returns the number of nodes nobody listens to, waiting for the grace
+     * period to be unsubscribed.
+     */
+    public int getPendingUnsubscribes() {
+        return getDescriptor().pending.getSize();
+    }
+
+    /**
+     * Returns the number of triggers of saved jobs waiting for their new
+     * trigger.
+     */
+    public int getStoppedTriggers() {
+        return getDescriptor().getStoppedTriggerCount();
+    }
+
+    public long getKeptSubscriptions() {
+        return getDescriptor().pending.getCancelledCount();
+    }
+
+    public long getUnsubscribedNodes() {
+        return getDescriptor().pending.getUnsubscribedCount();
+    }
+
+    public int getDispatcherWorkers() {
+        return getDescriptor().dispatcher.getWorkers();
+    }
+
+    /**
+     * Returns the type of the threads handling the events, which is PLATFORM
+     * if VIRTUAL was chosen on a runtime without virtual threads.
+     */
+    public String getExecutionMode() {
+        return getDescriptor().dispatcher.isVirtual()
+                ? EventDispatcher.ExecutionMode.VIRTUAL.name() : EventDispatcher.ExecutionMode.PLATFORM.name();
+    }
+
+    public int getDispatcherActiveCount() {
+        return getDescriptor().dispatcher.getActiveCount();
+    }
+
+    public int getDispatcherQueueSize() {
+        return getDescriptor().dispatcher.getQueueSize();
+    }
+
+    public int getDispatcherCapacity() {
+        return getDescriptor().dispatcher.getCapacity();
+    }
+
+    public String getDispatchOrdering() {
+        return getDescriptor().dispatcher.getOrdering().name();
+    }
+
+    /**
+     * Returns the number of nodes or jobs with events being handled.
+     */
+    public int getDispatcherKeyCount() {
+        return getDescriptor().dispatcher.getKeyCount();
+    }
+
+    public String getOverflowPolicy() {
+        return getDescriptor().dispatcher.getPolicy().name();
+    }
+
+    public long getDispatchedCount() {
+        return getDescriptor().dispatcher.getDispatchedCount();
+    }
+
+    public long getDiscardedCount() {
+        return getDescriptor().dispatcher.getDiscardedCount();
+    }
+
+    public int getEvaluatorThreads() {
+        return getDescriptor().parallel.getThreads();
+    }
+
+    /**
+     * Returns the number of times the subscriptions of a node were evaluated
+     * in parallel.
+     */
+    public long getParallelEvaluations() {
+        return getDescriptor().parallel.getSplitCount();
+    }
+
+    public int getRememberedItems() {
+        return getDescriptor().deduplicator.getSize();
+    }
+
+    public long getDuplicateCount() {
+        return getDescriptor().deduplicator.getHitCount();
+    }
+
+    /**
+     * Returns the percentage of items which were received already.
+     */
+    public String getDuplicateRate() {
+        return String.format("%.1f%%", 100 * getDescriptor().deduplicator.getHitRate());
+    }
+
+    public int getCoalescingWindows() {
+        return getDescriptor().coalescer.getOpenWindows();
+    }
+
+    public long getMergedCount() {
+        return getDescriptor().coalescer.getMergedCount();
+    }
+
+    public String getThrottleAction() {
+        return getDescriptor().limiter.getAction().name();
+    }
+
+    public long getThrottledDroppedCount() {
+        return getDescriptor().limiter.getDroppedCount();
+    }
+
+    public long getThrottledDelayedCount() {
+        return getDescriptor().limiter.getDelayedCount();
+    }
+
+    public long getThrottledCoalescedCount() {
+        return getDescriptor().limiter.getCoalescedCount();
+    }
+
+    public boolean isQueueDegraded() {
+        return getDescriptor().backpressure.isDegraded();
+    }
+
+    public int getQueueDepth() {
+        return getDescriptor().backpressure.getQueueDepth();
+    }
+
+    public String getDegradedMode() {
+        return getDescriptor().backpressure.getMode().name();
+    }
+
+    public int getHeldBackBuilds() {
+        return getDescriptor().backpressure.getBufferSize();
+    }
+
+    public long getBackpressureBufferedCount() {
+        return getDescriptor().backpressure.getBufferedCount();
+    }
+
+    public long getBackpressureCoalescedCount() {
+        return getDescriptor().backpressure.getCoalescedCount();
+    }
+
+    public long getBackpressureDroppedCount() {
+        return getDescriptor().backpressure.getDroppedCount();
+    }
+
+    /**
+     * Returns the builds waiting to be tried again.
+     */
+    public List<BuildScheduler.Attempt> getPendingRetries() {
+        return getDescriptor().scheduler.getPending();
+    }
+
+    public long getRetrySucceededCount() {
+        return getDescriptor().scheduler.getSucceededCount();
+    }
+
+    public long getRetryFailedCount() {
+        return getDescriptor().scheduler.getFailedCount();
+    }
+}
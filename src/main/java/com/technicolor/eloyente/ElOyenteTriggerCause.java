@@ -18,8 +18,11 @@ package com.technicolor.eloyente;
 
 import hudson.model.Cause;
 import hudson.EnvVars;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -31,6 +34,7 @@ import java.util.Set;
 public final class ElOyenteTriggerCause extends Cause {
 
 	private String event;
+	private List<String> events;
 	private String filter;
 	private EnvVars vars;
 
@@ -40,19 +44,38 @@ public final class ElOyenteTriggerCause extends Cause {
 		this.vars = vars;
 	}
 
+	/**
+	 * Function to create the cause of a build of one or more events
+	 * <p>
+	 * @param events The events merged into the build, in the order they were received
+	 * @param filter The filter which matched the events
+	 * @param vars The merged environment variables
+	 * @return The cause
+	 */
+	public static ElOyenteTriggerCause forEvents(List<String> events, String filter, EnvVars vars) {
+		ElOyenteTriggerCause cause = new ElOyenteTriggerCause(events.isEmpty() ? null : events.get(events.size() - 1), filter, vars);
+		if (events.size() > 1) {
+			cause.events = new ArrayList<String>(events);
+		}
+		return cause;
+	}
+
 	@Override
 	public String getShortDescription() {
-            String e= event;
-            
-            e=e.replaceAll("<", "&lt;");
-            e=e.replaceAll(">", "&gt;");
-            
             String cause = "";
 
 		cause+="<table>";
-		cause+="<tr><td colspan=2><b>El Oyente received an XMPP event:</b></td></tr>";
-		cause+="<tr><td colspan=2></td></tr>";
-		cause+="<tr><td><b>Event</b></td><td>" + e + "</td></tr>";
+		if (null == events) {
+			cause+="<tr><td colspan=2><b>El Oyente received an XMPP event:</b></td></tr>";
+			cause+="<tr><td colspan=2></td></tr>";
+			cause+="<tr><td><b>Event</b></td><td>" + escape(event) + "</td></tr>";
+		} else {
+			cause+="<tr><td colspan=2><b>El Oyente received " + events.size() + " XMPP events:</b></td></tr>";
+			cause+="<tr><td colspan=2></td></tr>";
+			for (String e : events) {
+				cause+="<tr><td><b>Event</b></td><td>" + escape(e) + "</td></tr>";
+			}
+		}
 		if (null != filter) {
 			cause+="<tr><td><b>Filter</b></td><td>" + filter + "</td></tr>";
 		}
@@ -68,10 +91,28 @@ public final class ElOyenteTriggerCause extends Cause {
 		return cause;
 	}
 
+	private static String escape(String e) {
+		e=e.replaceAll("<", "&lt;");
+		e=e.replaceAll(">", "&gt;");
+		return e;
+	}
+
 	public EnvVars getEnvVars() {
 		return vars;
 	}
 
+	/**
+	 * Function to retrieve the events the build was scheduled for.
+	 * <p>
+	 * @return The events, more than one when they were merged
+	 */
+	public List<String> getEvents() {
+		if (null == events) {
+			return Collections.singletonList(event);
+		}
+		return Collections.unmodifiableList(events);
+	}
+
 }
 
 // vim: set tabstop=4 softtabstop=4 shiftwidth=4 noexpandtab :
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges the events matching a subscription during its coalescing window into
+ * one build.
+ *
+ * The first matching event opens the window of the subscription. The events
+ * matching it until the window closes are collected, and then one build is
+ * scheduled for all of them. Its ElOyenteTriggerCause lists all the events,
+ * and the variables are merged according to the merge policy of the
+ * subscription.
+ *
+ * The merged build goes through the queue backpressure and the rate limiter
+ * when there are some, like the builds which are not coalesced: it is held
+ * back while the Jenkins queue is too long, and a build coalesced because of
+ * the rate limit still waits for a token.
+ */
+final class EventCoalescer {
+
+    private static final Logger LOGGER = Logger.getLogger(EventCoalescer.class.getName());
+
+    /**
+     * How the values of a variable are merged when several events are built
+     * together.
+     */
+    enum MergePolicy {
+
+        /**
+         * The value of the last event.
+         */
+        LAST,
+        /**
+         * The value of the first event.
+         */
+        FIRST,
+        /**
+         * The values of all the events, one per line.
+         */
+        LIST
+    }
+
+    static final MergePolicy DEFAULT_POLICY = MergePolicy.LAST;
+
+    /**
+     * The builds collected during a window.
+     */
+    private final class Window implements Runnable {
+
+        private final SubscriptionProperties subscription;
+        private final List<ItemEventCoordinator.Build> builds = new ArrayList<ItemEventCoordinator.Build>();
+        private boolean closed;
+
+        Window(SubscriptionProperties subscription) {
+            this.subscription = subscription;
+        }
+
+        synchronized boolean add(ItemEventCoordinator.Build build) {
+            if (closed) {
+                return false;
+            }
+            builds.add(build);
+            return true;
+        }
+
+        public void run() {
+            List<ItemEventCoordinator.Build> collected;
+            synchronized (this) {
+                closed = true;
+                collected = builds;
+            }
+            windows.remove(subscription, this);
+            merged.addAndGet(collected.size() - 1);
+            try {
+                ItemEventCoordinator.Build build = ItemEventCoordinator.Build.merge(collected, subscription.getMergePolicyValue());
+                QueueBackpressure b = backpressure;
+                RateLimiter l = limiter;
+                if (b != null && b.hold(build)) {
+                    // buffered, coalesced again or dropped until the Jenkins queue is shorter
+                } else if (l != null) {
+                    l.schedule(build);
+                } else {
+                    build.schedule();
+                }
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.SEVERE, "Failed to schedule the merged build", ex);
+            }
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+    /**
+     * (Key: subscription ; Value: its open window).
+     */
+    private final ConcurrentMap<SubscriptionProperties, Window> windows = new ConcurrentHashMap<SubscriptionProperties, Window>();
+    private final AtomicLong merged = new AtomicLong();
+    private volatile RateLimiter limiter;
+    private volatile QueueBackpressure backpressure;
+
+    /**
+     * Creates a coalescer.
+     *
+     * @param executor Closes the windows when their time is over.
+     */
+    EventCoalescer(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sends the merged builds to a rate limiter instead of scheduling them.
+     */
+    void setLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Holds back the merged builds while the Jenkins queue is too long.
+     */
+    void setBackpressure(QueueBackpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * Adds the build of an event to the open window of its subscription, or
+     * opens a window.
+     *
+     * @param build The build of a subscription with a coalescing window.
+     */
+    void add(ItemEventCoordinator.Build build) {
+        add(build, build.subscription.getCoalesceWindow());
+    }
+
+    /**
+     * Adds the build of an event to the open window of its subscription, or
+     * opens a window of the given length.
+     *
+     * @param build The build of a subscription.
+     * @param seconds Length of the window if a new one is opened.
+     */
+    void add(ItemEventCoordinator.Build build, long seconds) {
+        SubscriptionProperties subscription = build.subscription;
+        while (true) {
+            Window window = windows.get(subscription);
+            if (window == null) {
+                Window created = new Window(subscription);
+                window = windows.putIfAbsent(subscription, created);
+                if (window == null) {
+                    created.add(build);
+                    executor.schedule(created, seconds, TimeUnit.SECONDS);
+                    return;
+                }
+            }
+            if (window.add(build)) {
+                return;
+            }
+            // the window is closing, open a new one
+            windows.remove(subscription, window);
+        }
+    }
+
+    /**
+     * Returns the number of windows currently collecting events.
+     */
+    int getOpenWindows() {
+        return windows.size();
+    }
+
+    /**
+     * Returns the number of builds saved by merging events.
+     */
+    long getMergedCount() {
+        return merged.get();
+    }
+}
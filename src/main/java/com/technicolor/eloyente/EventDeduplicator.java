@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recognizes the items which were delivered already.
+ *
+ * The same published item can be delivered more than once, after a
+ * reconnection or when there are several subscriptions to its node. The
+ * deduplicator remembers the node and id of the last items received, for a
+ * limited time, so a delivery of the same item again does not trigger the
+ * builds again. The least recently seen items are forgotten first.
+ *
+ * A publisher may also reuse an item id on purpose, to overwrite an item or
+ * to publish a singleton "current" item (XEP-0060), and every such publication
+ * should trigger the builds. So the deduplicator is off by default, and its
+ * default TTL only covers the redeliveries, which come within seconds.
+ */
+final class EventDeduplicator {
+
+    /**
+     * Default number of items remembered, 0 disables the deduplicator.
+     */
+    static final int DEFAULT_SIZE = 0;
+    static final int DEFAULT_TTL = 5;
+
+    private int size;
+    private long ttl;
+    /**
+     * (Key: node and item id ; Value: time the item was first received, in
+     * nanoseconds), in access order.
+     */
+    private final LinkedHashMap<String, Long> seen = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > size;
+        }
+    };
+    private long lookups;
+    private long hits;
+
+    /**
+     * Creates a deduplicator.
+     *
+     * @param size Number of items remembered, 0 to disable it.
+     * @param ttl Seconds during which an item is remembered.
+     */
+    EventDeduplicator(int size, int ttl) {
+        configure(size, ttl);
+    }
+
+    /**
+     * Changes the number of items remembered and for how long.
+     */
+    synchronized void configure(int size, int ttl) {
+        this.size = Math.max(0, size);
+        this.ttl = TimeUnit.SECONDS.toNanos(Math.max(0, ttl));
+        if (seen.size() > this.size) {
+            seen.clear();
+        }
+    }
+
+    /**
+     * Checks whether an item was received already, and remembers it.
+     *
+     * @param node The node the item was published on.
+     * @param id The id of the item, items without id are never duplicates.
+     * @param now The current time in nanoseconds.
+     * @return true if the same item was received less than the TTL ago.
+     */
+    synchronized boolean isDuplicate(String node, String id, long now) {
+        if (id == null || size == 0) {
+            return false;
+        }
+        lookups++;
+        String key = node + '\n' + id;
+        Long first = seen.get(key);
+        if (first != null && now - first < ttl) {
+            hits++;
+            return true;
+        }
+        seen.put(key, now);
+        return false;
+    }
+
+    /**
+     * Returns the number of items remembered.
+     */
+    synchronized int getSize() {
+        return seen.size();
+    }
+
+    synchronized long getLookupCount() {
+        return lookups;
+    }
+
+    /**
+     * Returns the number of duplicate items.
+     */
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the ratio of duplicate items, between 0 and 1.
+     */
+    synchronized double getHitRate() {
+        return lookups == 0 ? 0 : hits / (double) lookups;
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands the XMPP events over from the Smack listener thread to a pool of
+ * worker threads.
+ *
+ * The filters, the variables and the scheduling of the builds run on the
+ * workers, so a slow job does not delay the events of the other nodes. Every
+ * task has a key, the tasks of a key run one after another in the order they
+ * were dispatched, and the tasks of different keys run in parallel. The
+ * events waiting for a worker are kept in a bounded queue, and the overflow
+ * policy decides what happens when it is full.
+ */
+final class EventDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(EventDispatcher.class.getName());
+
+    /**
+     * What to do with an event when the queue is full.
+     */
+    enum OverflowPolicy {
+
+        /**
+         * Wait on the listener thread until there is room in the queue. No
+         * event is lost, as before the events were dispatched, so this is the
+         * default.
+         */
+        BLOCK,
+        /**
+         * Drop the event which was just received.
+         */
+        DISCARD_NEWEST,
+        /**
+         * Drop the event which waited the longest in the queue.
+         */
+        DISCARD_OLDEST
+    }
+
+    /**
+     * Which events are handled in the order they were received.
+     */
+    enum Ordering {
+
+        /**
+         * The events of a node are handled one after another.
+         */
+        NODE,
+        /**
+         * The filters of a node are evaluated one event after another, and
+         * the builds of a job are scheduled one after another, so the builds
+         * of the different jobs of a node are scheduled in parallel.
+         */
+        JOB
+    }
+
+    /**
+     * Which threads run the tasks.
+     */
+    enum ExecutionMode {
+
+        /**
+         * A fixed pool of worker threads.
+         */
+        PLATFORM,
+        /**
+         * A virtual thread per task, on a Java runtime which has them, or
+         * else the fixed pool.
+         */
+        VIRTUAL
+    }
+
+    static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    static final int DEFAULT_CAPACITY = 1000;
+    static final OverflowPolicy DEFAULT_POLICY = OverflowPolicy.BLOCK;
+    static final Ordering DEFAULT_ORDERING = Ordering.NODE;
+    static final ExecutionMode DEFAULT_MODE = ExecutionMode.PLATFORM;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ElOyente dispatcher " + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /**
+     * The tasks of a key waiting for a worker.
+     *
+     * It is in the map of keys while it has tasks, and then it is either
+     * waiting for a worker or running on one.
+     */
+    private final class Serial implements Runnable {
+
+        private final Object key;
+        private final LinkedList<Task> tasks = new LinkedList<Task>();
+
+        Serial(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * Runs the first task, and then lets the other keys run before the
+         * next one.
+         */
+        public void run() {
+            Task task;
+            synchronized (EventDispatcher.this) {
+                task = tasks.poll();
+                if (task == null) {
+                    // its tasks were discarded
+                    serials.remove(key);
+                    return;
+                }
+                if (task.bounded) {
+                    pending--;
+                    EventDispatcher.this.notifyAll();
+                }
+                active++;
+            }
+            try {
+                task.runnable.run();
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.SEVERE, "Failed to handle an event", ex);
+            }
+            synchronized (EventDispatcher.this) {
+                active--;
+                if (tasks.isEmpty()) {
+                    serials.remove(key);
+                    return;
+                }
+            }
+            execute(this);
+        }
+    }
+
+    private static final class Task {
+
+        final long sequence;
+        final Runnable runnable;
+        /**
+         * Whether the task counts in the capacity.
+         */
+        final boolean bounded;
+
+        Task(long sequence, Runnable runnable, boolean bounded) {
+            this.sequence = sequence;
+            this.runnable = runnable;
+            this.bounded = bounded;
+        }
+    }
+
+    private volatile ExecutorService executor;
+    private ExecutionMode mode;
+    private boolean virtual;
+    private volatile OverflowPolicy policy;
+    private volatile Ordering ordering;
+    private int workers;
+    private int capacity;
+    /**
+     * (Key: key of the tasks ; Value: its tasks waiting for a worker).
+     */
+    private final Map<Object, Serial> serials = new HashMap<Object, Serial>();
+    /**
+     * Number of bounded tasks waiting for a worker.
+     */
+    private int pending;
+    /**
+     * Number of tasks running.
+     */
+    private int active;
+    private long sequence;
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * Creates a dispatcher with its worker threads.
+     *
+     * @param workers Number of worker threads.
+     * @param capacity Number of events which can wait for a worker.
+     * @param policy What to do with an event when the queue is full.
+     */
+    EventDispatcher(int workers, int capacity, OverflowPolicy policy) {
+        this(workers, capacity, policy, DEFAULT_ORDERING);
+    }
+
+    /**
+     * Creates a dispatcher with its worker threads.
+     *
+     * @param workers Number of worker threads.
+     * @param capacity Number of events which can wait for a worker.
+     * @param policy What to do with an event when the queue is full.
+     * @param ordering Which events are handled in order.
+     */
+    EventDispatcher(int workers, int capacity, OverflowPolicy policy, Ordering ordering) {
+        this(workers, capacity, policy, ordering, DEFAULT_MODE);
+    }
+
+    /**
+     * Creates a dispatcher with its worker threads.
+     *
+     * @param workers Number of worker threads, when they are not virtual.
+     * @param capacity Number of events which can wait for a worker.
+     * @param policy What to do with an event when the queue is full.
+     * @param ordering Which events are handled in order.
+     * @param mode Which threads run the tasks.
+     */
+    EventDispatcher(int workers, int capacity, OverflowPolicy policy, Ordering ordering, ExecutionMode mode) {
+        configure(workers, capacity, policy, ordering, mode);
+    }
+
+    /**
+     * Changes the settings of the dispatcher, but not the ordering.
+     */
+    synchronized void configure(int workers, int capacity, OverflowPolicy policy) {
+        configure(workers, capacity, policy, ordering);
+    }
+
+    /**
+     * Changes the settings of the dispatcher, but not the execution mode.
+     */
+    synchronized void configure(int workers, int capacity, OverflowPolicy policy, Ordering ordering) {
+        configure(workers, capacity, policy, ordering, mode);
+    }
+
+    /**
+     * Changes the settings of the dispatcher.
+     *
+     * If the number of workers or the execution mode changed, new workers
+     * are started, and the old ones stop once they handled the events which
+     * were already given to them.
+     */
+    synchronized void configure(int workers, int capacity, OverflowPolicy policy, Ordering ordering, ExecutionMode mode) {
+        workers = Math.max(1, workers);
+        mode = (mode == null ? DEFAULT_MODE : mode);
+        this.capacity = Math.max(1, capacity);
+        this.policy = (policy == null ? DEFAULT_POLICY : policy);
+        this.ordering = (ordering == null ? DEFAULT_ORDERING : ordering);
+        notifyAll();
+        if (executor != null && workers == this.workers && mode == this.mode) {
+            return;
+        }
+        ExecutorService old = executor;
+        ExecutorService e = null;
+        if (mode == ExecutionMode.VIRTUAL) {
+            e = newVirtualThreadExecutor();
+            if (e == null) {
+                LOGGER.log(Level.WARNING, "Virtual threads are not available on Java {0}, using {1} worker threads",
+                        new Object[]{System.getProperty("java.version"), workers});
+            }
+        }
+        this.virtual = (e != null);
+        if (e == null) {
+            // a Serial of every key at most, the events wait in the Serials
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), THREAD_FACTORY);
+            pool.allowCoreThreadTimeOut(true);
+            e = pool;
+        }
+        this.workers = workers;
+        this.mode = mode;
+        this.executor = e;
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task.
+     *
+     * The plugin is built for older Java runtimes, so the executor is looked
+     * up by reflection.
+     *
+     * @return The executor, or null if the runtime has no virtual threads.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception ex) {
+            // older runtime, or virtual threads are a disabled preview feature
+            return null;
+        }
+    }
+
+    /**
+     * Runs a task on a worker thread, after the other tasks of its own.
+     *
+     * @param task The handling of an event.
+     */
+    void dispatch(Runnable task) {
+        dispatch(task, task);
+    }
+
+    /**
+     * Runs a task on a worker thread, after the tasks dispatched before with
+     * the same key.
+     *
+     * When the queue is full the task is handled according to the overflow
+     * policy.
+     *
+     * @param key The key of the task, such as "node:" and the name of its node.
+     * @param task The handling of an event.
+     */
+    void dispatch(Object key, Runnable task) {
+        dispatched.incrementAndGet();
+        Serial started;
+        synchronized (this) {
+            while (pending >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            discard("interrupted while waiting for the queue");
+                            return;
+                        }
+                        break;
+                    case DISCARD_NEWEST:
+                        discard("queue is full");
+                        return;
+                    case DISCARD_OLDEST:
+                        discardOldest();
+                        discard("queue is full");
+                        break;
+                }
+            }
+            pending++;
+            started = add(key, new Task(sequence++, task, true));
+        }
+        if (started != null) {
+            execute(started);
+        }
+    }
+
+    /**
+     * Runs a task created by a worker, after the tasks dispatched before with
+     * the same key.
+     *
+     * The task is neither discarded nor kept waiting for room in the queue,
+     * so the workers never wait for each other.
+     *
+     * @param key The key of the task, such as "job:" and the name of its job.
+     * @param task The rest of the handling of an event.
+     */
+    void dispatchFollowUp(Object key, Runnable task) {
+        Serial started;
+        synchronized (this) {
+            started = add(key, new Task(sequence++, task, false));
+        }
+        if (started != null) {
+            execute(started);
+        }
+    }
+
+    /**
+     * Adds a task to the tasks of its key.
+     *
+     * @return The Serial to be given to a worker, or null if the key has
+     * one already.
+     */
+    private Serial add(Object key, Task task) {
+        Serial serial = serials.get(key);
+        Serial started = null;
+        if (serial == null) {
+            serial = new Serial(key);
+            serials.put(key, serial);
+            started = serial;
+        }
+        serial.tasks.add(task);
+        return started;
+    }
+
+    /**
+     * Drops the bounded task which waited the longest.
+     */
+    private void discardOldest() {
+        Serial oldest = null;
+        for (Serial serial : serials.values()) {
+            Task first = firstBounded(serial);
+            if (first != null && (oldest == null || first.sequence < firstBounded(oldest).sequence)) {
+                oldest = serial;
+            }
+        }
+        if (oldest != null) {
+            oldest.tasks.remove(firstBounded(oldest));
+            pending--;
+        }
+    }
+
+    private static Task firstBounded(Serial serial) {
+        for (Task task : serial.tasks) {
+            if (task.bounded) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private void execute(Serial serial) {
+        ExecutorService e = executor;
+        try {
+            e.execute(serial);
+            return;
+        } catch (RejectedExecutionException ex) {
+            if (executor == e) {
+                release(serial);
+                return;
+            }
+        }
+        // the executor was replaced by configure() in the meantime
+        try {
+            executor.execute(serial);
+        } catch (RejectedExecutionException ex) {
+            release(serial);
+        }
+    }
+
+    /**
+     * Drops the tasks of a key the executor rejected, the dispatcher is shut
+     * down, so the key does not stay blocked.
+     */
+    private void release(Serial serial) {
+        int dropped;
+        synchronized (this) {
+            if (serials.get(serial.key) == serial) {
+                serials.remove(serial.key);
+            }
+            dropped = serial.tasks.size();
+            for (Task task : serial.tasks) {
+                if (task.bounded) {
+                    pending--;
+                }
+            }
+            serial.tasks.clear();
+            notifyAll();
+        }
+        for (int i = 0; i < dropped; i++) {
+            discard("dispatcher is shut down");
+        }
+    }
+
+    /**
+     * Stops the workers once they handled the events given to them.
+     */
+    synchronized void shutdown() {
+        executor.shutdown();
+    }
+
+    int getWorkers() {
+        return workers;
+    }
+
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    Ordering getOrdering() {
+        return ordering;
+    }
+
+    synchronized ExecutionMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns true if the tasks run on virtual threads.
+     */
+    synchronized boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Returns the number of events waiting for a worker.
+     */
+    synchronized int getQueueSize() {
+        return pending;
+    }
+
+    /**
+     * Returns the number of keys with tasks waiting or running.
+     */
+    synchronized int getKeyCount() {
+        return serials.size();
+    }
+
+    /**
+     * Returns the number of events handled by a worker right now.
+     */
+    synchronized int getActiveCount() {
+        return active;
+    }
+
+    /**
+     * Returns the number of events received since the dispatcher was created.
+     */
+    long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    /**
+     * Returns the number of events dropped because the queue was full, or
+     * the dispatcher was shut down.
+     */
+    long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    private void discard(String reason) {
+        long n = discarded.incrementAndGet();
+        LOGGER.log(Level.WARNING, "Event discarded, {0} ({1} discarded so far)", new Object[]{reason, n});
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.xpath.XPathExpressionException;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Index of the subscriptions to a node, used to skip filters that can not
+ * match an event.
+ *
+ * A filter like /item/build[@branch='main'] only matches events with an
+ * "item" root element which has a "build" child element. The index groups
+ * the subscriptions by these leading element names, so an event only needs
+ * to be tested against the filters of its own root and child elements.
+ * Filters which do not start with plain element names are always tested.
+ *
+ * Filters which only differ in the value of an attribute test, like
+ * /item/push[@repo='a'] and /item/push[@repo='b'], are not tested one by
+ * one: the values of the attribute are extracted once from the event and
+ * looked up in a table of all the subscriptions of that form.
+ *
+ * An index is immutable: the ItemEventCoordinator builds a new one when the
+ * triggers of its node change.
+ */
+final class FilterIndex {
+
+    /**
+     * Number of leading element names used as index key.
+     */
+    private static final int DEPTH = 2;
+
+    /**
+     * Something that finds the subscriptions matching an event.
+     */
+    private abstract static class Candidate {
+
+        /**
+         * Adds the subscriptions matching the event to the list.
+         */
+        abstract void match(XMPPEvent event, List<Entry> matches);
+    }
+
+    /**
+     * A subscription of a trigger to the node.
+     */
+    static final class Entry extends Candidate {
+
+        final ElOyente trigger;
+        final SubscriptionProperties subscription;
+        /**
+         * Position in the list of subscriptions, used to keep the order in
+         * which the builds are scheduled.
+         */
+        final int position;
+
+        Entry(ElOyente trigger, SubscriptionProperties subscription, int position) {
+            this.trigger = trigger;
+            this.subscription = subscription;
+            this.position = position;
+        }
+
+        @Override
+        void match(XMPPEvent event, List<Entry> matches) {
+            try {
+                if (subscription.getFilterXPath().test(event)) {
+                    matches.add(this);
+                }
+            } catch (XPathExpressionException ex) {
+                Logger.getLogger(FilterIndex.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * The subscriptions whose filter is the same path[@attribute='value']
+     * test, except for the value.
+     */
+    private static final class EqualityTable extends Candidate {
+
+        private final String attribute;
+        private final StreamingXPathFilter pathFilter;
+        /**
+         * path/@attribute, for the events which were parsed already, or null
+         * if it does not compile.
+         */
+        private final CompiledExpression attributes;
+        /**
+         * (Key: value of the attribute ; Value: the subscriptions testing
+         * that value).
+         */
+        private final Map<String, List<Entry>> table = new HashMap<String, List<Entry>>();
+
+        EqualityTable(String path, String attribute) {
+            this.attribute = attribute;
+            this.pathFilter = StreamingXPathFilter.compile(path);
+            CompiledExpression c = null;
+            try {
+                c = CompiledExpression.intern(path + "/@" + attribute);
+            } catch (XPathExpressionException ex) {
+                Logger.getLogger(FilterIndex.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            this.attributes = c;
+        }
+
+        void add(String value, Entry entry) {
+            List<Entry> entries = table.get(value);
+            if (entries == null) {
+                entries = new ArrayList<Entry>();
+                table.put(value, entries);
+            }
+            entries.add(entry);
+        }
+
+        @Override
+        void match(XMPPEvent event, List<Entry> matches) {
+            try {
+                for (String value : values(event)) {
+                    List<Entry> entries = table.get(value);
+                    if (entries != null) {
+                        matches.addAll(entries);
+                    }
+                }
+            } catch (XPathExpressionException ex) {
+                Logger.getLogger(FilterIndex.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        /**
+         * Extracts the values of the attribute from the event, by streaming
+         * the event if it was not parsed yet.
+         */
+        private Set<String> values(XMPPEvent event) throws XPathExpressionException {
+            if (!event.isParsed()) {
+                Set<String> values = pathFilter.collect(event.getXML(), attribute);
+                if (values != null) {
+                    return values;
+                }
+            }
+            Set<String> values = new HashSet<String>();
+            Document doc = event.getDocument();
+            if (doc != null && attributes != null) {
+                NodeList n = attributes.evaluate(doc);
+                for (int i = 0; i < n.getLength(); i++) {
+                    values.add(n.item(i).getNodeValue());
+                }
+            }
+            return values;
+        }
+    }
+
+    private static final Comparator<Entry> BY_POSITION = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return a.position < b.position ? -1 : (a.position == b.position ? 0 : 1);
+        }
+    };
+
+    private final Collection<ElOyente> triggers;
+    private final List<Entry> all = new ArrayList<Entry>();
+    private final List<Candidate> unindexed = new ArrayList<Candidate>();
+    /**
+     * (Key: root element name, or root and child element name separated by
+     * a slash ; Value: the candidates whose filter starts with them).
+     */
+    private final Map<String, List<Candidate>> indexed = new HashMap<String, List<Candidate>>();
+    /**
+     * (Key: path and attribute of the equality test ; Value: the table).
+     */
+    private final Map<String, EqualityTable> tables = new HashMap<String, EqualityTable>();
+
+    /**
+     * Builds the index for the subscriptions of some triggers to a node.
+     *
+     * @param nodename Name of the node.
+     * @param triggers The triggers listening to the node.
+     */
+    FilterIndex(String nodename, Collection<ElOyente> triggers) {
+        this.triggers = triggers;
+        for (ElOyente trigger : triggers) {
+            for (SubscriptionProperties subs : trigger.getNodeSubscriptions(nodename)) {
+                Entry entry = new Entry(trigger, subs, all.size());
+                all.add(entry);
+                StreamingXPathFilter filter = streamingFilter(subs);
+                StreamingXPathFilter.Equality equality = (filter == null ? null : filter.getEquality());
+                if (equality == null) {
+                    add(filter, entry);
+                } else {
+                    String key = equality.path + "/@" + equality.attribute;
+                    EqualityTable table = tables.get(key);
+                    if (table == null) {
+                        table = new EqualityTable(equality.path, equality.attribute);
+                        tables.put(key, table);
+                        add(filter, table);
+                    }
+                    table.add(equality.value, entry);
+                }
+            }
+        }
+    }
+
+    private static StreamingXPathFilter streamingFilter(SubscriptionProperties subs) {
+        CompiledExpression compiled = subs.getFilterXPath().getCompiledExpression();
+        return compiled == null ? null : compiled.getStreamingFilter();
+    }
+
+    private void add(StreamingXPathFilter filter, Candidate candidate) {
+        String[] prefix = (filter == null ? new String[0] : filter.getPrefix(DEPTH));
+        if (prefix.length == 0) {
+            unindexed.add(candidate);
+            return;
+        }
+        String key = prefix.length == 1 ? prefix[0] : prefix[0] + "/" + prefix[1];
+        List<Candidate> candidates = indexed.get(key);
+        if (candidates == null) {
+            candidates = new ArrayList<Candidate>();
+            indexed.put(key, candidates);
+        }
+        candidates.add(candidate);
+    }
+
+    /**
+     * Returns the triggers the index was built for.
+     */
+    Collection<ElOyente> getTriggers() {
+        return triggers;
+    }
+
+    /**
+     * Returns all the subscriptions in the index.
+     */
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Returns the subscriptions whose filter matches an event.
+     *
+     * Only the filters which can possibly match the root elements of the
+     * event are evaluated. The subscriptions are returned in the same order
+     * as getEntries().
+     *
+     * @param event The XMPP event received.
+     */
+    List<Entry> getMatches(XMPPEvent event) {
+        return getMatches(event, null);
+    }
+
+    /**
+     * Returns the subscriptions whose filter matches an event, testing the
+     * filters of a node with many subscriptions in parallel.
+     *
+     * @param event The XMPP event received.
+     * @param parallel Tests the filters in parallel, or null.
+     */
+    List<Entry> getMatches(final XMPPEvent event, ParallelEvaluator parallel) {
+        List<Candidate> candidates = getCandidates(event);
+        List<Entry> matches;
+        if (parallel == null) {
+            matches = match(event, candidates);
+        } else {
+            matches = parallel.evaluate(candidates, new ParallelEvaluator.Chunk<Candidate, Entry>() {
+                public List<Entry> evaluate(List<Candidate> items, boolean first) {
+                    return match(first ? event : event.copy(), items);
+                }
+            });
+        }
+        Collections.sort(matches, BY_POSITION);
+        return matches;
+    }
+
+    private static List<Entry> match(XMPPEvent event, List<Candidate> candidates) {
+        List<Entry> matches = new ArrayList<Entry>();
+        for (Candidate candidate : candidates) {
+            candidate.match(event, matches);
+        }
+        return matches;
+    }
+
+    private List<Candidate> getCandidates(XMPPEvent event) {
+        List<Candidate> candidates = new ArrayList<Candidate>(unindexed);
+        if (indexed.isEmpty()) {
+            return candidates;
+        }
+        List<String> names = event.getTopLevelNames();
+        if (names == null || names.isEmpty()) {
+            for (List<Candidate> c : indexed.values()) {
+                candidates.addAll(c);
+            }
+            return candidates;
+        }
+        String root = names.get(0);
+        addAll(candidates, indexed.get(root));
+        // several children can have the same name, only count them once
+        Set<String> children = new HashSet<String>(names.subList(1, names.size()));
+        for (String child : children) {
+            addAll(candidates, indexed.get(root + "/" + child));
+        }
+        return candidates;
+    }
+
+    private static void addAll(List<Candidate> to, List<Candidate> from) {
+        if (from != null) {
+            to.addAll(from);
+        }
+    }
+}
@@ -18,9 +18,12 @@ package com.technicolor.eloyente;
 import hudson.EnvVars;
 import hudson.triggers.Trigger;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.xpath.XPathExpressionException;
@@ -35,19 +38,58 @@ import org.jivesoftware.smackx.pubsub.listener.ItemEventListener;
  */
 public class ItemEventCoordinator implements ItemEventListener<PayloadItem<SimplePayload>> {
 
+    private static final Logger LOGGER = Logger.getLogger(ItemEventCoordinator.class.getName());
+
     /**
      * Name of the node that will be listened .
      */
     private final String nodename;
     /**
-     * The list of triggers that this ItemEventCoordinator will have to trigger
-     * .
+     * The triggers that this ItemEventCoordinator will have to trigger .
      *
-     * This list of triggers is set depending on the subscriptions of the
+     * This set of triggers is set depending on the subscriptions of the
      * different jobs. When an event is received, this ItemEventCoordinator will
      * schedule builds for the jobs related to this triggers.
+     *
+     * The set is never modified, a copy is made when a trigger is added or
+     * removed, so the events are handled without any lock. It is null once
+     * the last trigger was removed.
+     */
+    private final AtomicReference<Set<ElOyente>> triggers =
+            new AtomicReference<Set<ElOyente>>(Collections.<ElOyente>emptySet());
+    /**
+     * Index of the subscriptions of the triggers to this node.
+     *
+     * It is built again on the first event after the triggers changed.
+     */
+    private transient volatile FilterIndex index;
+    /**
+     * Worker threads handling the events, or null to handle them on the Smack
+     * listener thread.
+     */
+    private final EventDispatcher dispatcher;
+    /**
+     * Merges the events of the subscriptions with a coalescing window, or
+     * null to build every event at once.
+     */
+    private final EventCoalescer coalescer;
+    /**
+     * Limits the number of builds, or null for no limit.
+     */
+    private final RateLimiter limiter;
+    /**
+     * Holds back the builds while the Jenkins queue is too long, or null.
+     */
+    private final QueueBackpressure backpressure;
+    /**
+     * Recognizes the items delivered more than once, or null.
      */
-    protected final ArrayList<ElOyente> Triggers;
+    private final EventDeduplicator deduplicator;
+    /**
+     * Evaluates the subscriptions of a node with many of them in parallel, or
+     * null.
+     */
+    private final ParallelEvaluator parallel;
 
     /**
      * Constructor for the ItemEventCoordinator.
@@ -55,31 +97,125 @@ public class ItemEventCoordinator implements ItemEventListener<PayloadItem<Simpl
      * It creates an ItemEventCoordinator for a concrete node.
      *
      * @param s Name of the node to be listened to.
+     * @param descriptor The descriptor providing the threads handling the
+     * events, or null to handle them on the Smack listener thread.
      */
-    ItemEventCoordinator(String nodename) {
+    ItemEventCoordinator(String nodename, ElOyente.DescriptorImpl descriptor) {
         this.nodename = nodename;
-        this.Triggers = new ArrayList();
+        this.dispatcher = (descriptor == null ? null : descriptor.dispatcher);
+        this.coalescer = (descriptor == null ? null : descriptor.coalescer);
+        this.limiter = (descriptor == null ? null : descriptor.limiter);
+        this.backpressure = (descriptor == null ? null : descriptor.backpressure);
+        this.deduplicator = (descriptor == null ? null : descriptor.deduplicator);
+        this.parallel = (descriptor == null ? null : descriptor.parallel);
+    }
+
+    /**
+     * Adds a trigger to the set.
+     *
+     * It adds a trigger to the set every time a job requires it, the triggers
+     * are not repeated.
+     *
+     * @param trigger Trigger to be added to the set of triggers.
+     * @return false if the last trigger was removed already, then this
+     * ItemEventCoordinator does not listen to the node anymore and the
+     * trigger must be added to a new one.
+     */
+    public boolean addTrigger(ElOyente trigger) {
+        while (true) {
+            Set<ElOyente> current = triggers.get();
+            if (current == null) {
+                return false;
+            }
+            if (current.contains(trigger)) {
+                return true;
+            }
+            Set<ElOyente> updated = new LinkedHashSet<ElOyente>(current);
+            updated.add(trigger);
+            if (triggers.compareAndSet(current, Collections.unmodifiableSet(updated))) {
+                return true;
+            }
+        }
     }
 
     /**
-     * Adds a trigger to the list.
+     * Replaces a trigger by another one at once, so every event is handled
+     * by one of them and never by both or by none.
+     *
+     * If the old trigger is not in the set, the new one is only added.
      *
-     * It adds a trigger to the list every time a job requires it, it makes sure
-     * the triggers are not repeated.
+     * @param old Trigger to be removed from the set.
+     * @param trigger Trigger to be added to the set.
+     * @return false if the last trigger was removed already, then this
+     * ItemEventCoordinator does not listen to the node anymore and the
+     * trigger must be added to a new one.
+     */
+    public boolean replaceTrigger(ElOyente old, ElOyente trigger) {
+        while (true) {
+            Set<ElOyente> current = triggers.get();
+            if (current == null) {
+                return false;
+            }
+            if (!current.contains(old) && current.contains(trigger)) {
+                return true;
+            }
+            Set<ElOyente> updated = new LinkedHashSet<ElOyente>(current);
+            updated.remove(old);
+            updated.add(trigger);
+            if (triggers.compareAndSet(current, Collections.unmodifiableSet(updated))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes a trigger from the set.
      *
-     * @param trigger Trigger to be added to the list of triggers.
+     * @param trigger Trigger to be removed from the set of triggers.
+     * @return true if the trigger was the last one, then no trigger can be
+     * added anymore. False if it was not in the set, the set is left as it
+     * is.
      */
-    public void addTrigger(ElOyente trigger) {
-        boolean add = false;
-        for (ElOyente triggerAdded : this.Triggers) {
-            if (trigger.equals(triggerAdded)) {
-                add = true;
-                break;
+    public boolean removeTrigger(ElOyente trigger) {
+        while (true) {
+            Set<ElOyente> current = triggers.get();
+            if (current == null || !current.contains(trigger)) {
+                return false;
+            }
+            Set<ElOyente> updated = new LinkedHashSet<ElOyente>(current);
+            updated.remove(trigger);
+            Set<ElOyente> next = updated.isEmpty() ? null : Collections.unmodifiableSet(updated);
+            if (triggers.compareAndSet(current, next)) {
+                return next == null;
             }
         }
-        if (add == false) {
-            this.Triggers.add(trigger);
+    }
+
+    /**
+     * Returns the triggers listening to the node.
+     */
+    Set<ElOyente> getTriggers() {
+        Set<ElOyente> current = triggers.get();
+        return current == null ? Collections.<ElOyente>emptySet() : current;
+    }
+
+    /**
+     * Returns the index of the subscriptions to this node, building it if
+     * the triggers changed since the last event.
+     */
+    private FilterIndex getIndex() {
+        Set<ElOyente> current = getTriggers();
+        FilterIndex i = this.index;
+        if (i == null || i.getTriggers() != current) {
+            i = new FilterIndex(nodename, current);
+            this.index = i;
         }
+        return i;
+    }
+
+    @Override
+    public String toString() {
+        return "ItemEventCoordinator[" + nodename + ", " + getTriggers().size() + " triggers]";
     }
 
     /**
@@ -87,11 +223,26 @@ public class ItemEventCoordinator implements ItemEventListener<PayloadItem<Simpl
      * the environment variables if they exist.
      *
      * It is called for each XMPP event received on a node. It will trigger all
-     * the triggers of the field Triggers, for this, it will get all the
+     * the triggers of the field triggers, for this, it will get all the
      * subscriptions of each particular job of each particular trigger in the
-     * field Triggers and it will filter based on the filter specified. If it
+     * field triggers and it will filter based on the filter specified. If it
      * passes it will use the method runWithEnvironment(EnvVars) to schedule a
-     * build.
+     * build. Only the subscriptions whose filter can match the root elements
+     * of the event are tested, and filters that only differ in an attribute
+     * value are decided together, see FilterIndex.
+     *
+     * All the items of the event are handled as a batch: the filters are
+     * evaluated against every item first, and then the builds are scheduled.
+     *
+     * Only the items are serialized on the Smack listener thread, the rest is
+     * done by the EventDispatcher. The items which were received already are
+     * skipped, see EventDeduplicator.
+     *
+     * The builds of a subscription with a coalescing window are handed to the
+     * EventCoalescer, which schedules one build for all the events received
+     * during the window. The builds, merged or not, are held back by the
+     * QueueBackpressure while the Jenkins queue is too long, and are subject
+     * to the RateLimiter.
      *
      * @param items The XMPP event received.
      *
@@ -99,57 +250,220 @@ public class ItemEventCoordinator implements ItemEventListener<PayloadItem<Simpl
     
     
     public void handlePublishedItems(ItemPublishEvent<PayloadItem<SimplePayload>> items) {
-        print(items);
-        for (ElOyente trigger : this.Triggers) {
-            synchronized (trigger.listeners) {
-                {
-                    System.out.println(trigger.listeners.size());
-
-                    Iterator it2 = trigger.listeners.entrySet().iterator();
-                    while (it2.hasNext()) {
-                        Map.Entry e = (Map.Entry) it2.next();
-                        System.out.println("LISTENER: " + e.getKey() + " " + e.getValue());
-                    }
+        // each item is serialized once, and the same XML is printed and parsed
+        // the item was parsed by Smack already, so it is well-formed
+        final List<XMPPEvent> events = new ArrayList<XMPPEvent>();
+        long now = System.nanoTime();
+        for (PayloadItem<SimplePayload> item : items.getItems()) {
+            if (deduplicator != null && deduplicator.isDuplicate(nodename, item.getId(), now)) {
+                LOGGER.log(Level.FINE, "{0}: Item {1} was received already", new Object[]{nodename, item.getId()});
+                continue;
+            }
+            events.add(new XMPPEvent(item.getId(), item.toXML(), true));
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        if (dispatcher == null) {
+            process(events);
+        } else {
+            // the events of a node are evaluated in the order they were published
+            dispatcher.dispatch("node:" + nodename, new Runnable() {
+                public void run() {
+                    process(events);
                 }
-                // TODO: why only consider the first entry of items, and why use an iterator in that case?
-                String xml = items.getItems().iterator().next().toXML();
-                List<SubscriptionProperties> subscriptionList = trigger.getNodeSubscriptions(nodename);
-
-
-                for (SubscriptionProperties subs : subscriptionList) {
-                    try {
-                        XPathExpressionHandler filter = subs.getFilterXPath();
-                        if (filter.test(xml)) {
-                            EnvVars vars = new EnvVars();
-                            for (Variable v : subs.getVariables()) {
-                                vars.put(v.getEnvName(), v.resolve(xml));
-                            }
-                            try {
-                                trigger.runWithEnvironment(xml, filter.getExpression(), vars);
-                            } catch (InterruptedException ex) {
-                                Logger.getLogger(ItemEventCoordinator.class.getName()).log(Level.SEVERE, null, ex);
-                            }
-                        }
-                    } catch (XPathExpressionException ex) {
-                        System.out.println("Exception: " + ex);
-                        Logger.getLogger(ItemEventCoordinator.class.getName()).log(Level.SEVERE, null, ex);
+            });
+        }
+    }
+
+    /**
+     * Evaluates a batch of events and schedules the builds.
+     *
+     * With the JOB ordering, the builds of every job are scheduled by the
+     * dispatcher after the builds of that job which were evaluated before.
+     */
+    void process(List<XMPPEvent> events) {
+        print(events);
+        List<Build> builds = evaluate(events);
+        if (dispatcher != null && dispatcher.getOrdering() == EventDispatcher.Ordering.JOB) {
+            for (final Build build : builds) {
+                // the keys of the jobs and of the nodes must not collide
+                dispatcher.dispatchFollowUp("job:" + build.getJobName(), new Runnable() {
+                    public void run() {
+                        schedule(build);
                     }
-                }
+                });
+            }
+        } else {
+            for (Build build : builds) {
+                schedule(build);
             }
         }
     }
 
+    /**
+     * Schedules the build of a subscription, unless it is coalesced, held
+     * back or throttled.
+     */
+    private void schedule(Build build) {
+        if (coalescer != null && build.subscription.getCoalesceWindow() > 0) {
+            coalescer.add(build);
+        } else if (backpressure != null && backpressure.hold(build)) {
+            // buffered, coalesced or dropped until the Jenkins queue is shorter
+        } else if (limiter != null) {
+            limiter.schedule(build);
+        } else {
+            build.schedule();
+        }
+    }
+
+    /**
+     * A build to be scheduled for one or more events.
+     */
+    static final class Build {
+
+        final ElOyente trigger;
+        final SubscriptionProperties subscription;
         /**
-         * Prints the message of the XMPP event received.
+         * Name of the node the events were published on.
          */
-    private synchronized void print(ItemPublishEvent<PayloadItem<SimplePayload>> items) {
-        System.out.println("-----------------------------");
-        System.out.println("El item event coordinator es: " + this);
-        System.out.println(nodename + ": Item count: " + items.getItems().size());
-        for (PayloadItem<SimplePayload> item : items.getItems()) {
-            System.out.println(nodename + ": XML: " + item.toXML());
-            System.out.println("Mas cosas:" + item);
+        final String node;
+        final List<String> events;
+        final String expression;
+        final EnvVars vars;
+        /**
+         * Identity of the event, or null if the build may be merged with a
+         * queued build.
+         */
+        final ElOyenteEventAction action;
+
+        Build(ElOyente trigger, SubscriptionProperties subscription, String node, List<String> events, String expression, EnvVars vars, ElOyenteEventAction action) {
+            this.trigger = trigger;
+            this.subscription = subscription;
+            this.node = node;
+            this.events = events;
+            this.expression = expression;
+            this.vars = vars;
+            this.action = action;
+        }
+
+        /**
+         * Returns the name of the job of the trigger.
+         */
+        String getJobName() {
+            return trigger.project == null ? "" : trigger.project.getName();
+        }
+
+        /**
+         * Schedules the build, unless its trigger was stopped, then the
+         * trigger replacing it schedules the build, see ElOyente.stop().
+         */
+        void schedule() {
+            if (!trigger.hold(this)) {
+                trigger.runWithEnvironment(events, expression, vars, action);
+            }
+        }
+
+        /**
+         * Merges the builds of several events of a subscription into one
+         * build.
+         *
+         * @param builds The builds, in the order the events were received.
+         * @param policy How to merge the values of the variables.
+         */
+        static Build merge(List<Build> builds, EventCoalescer.MergePolicy policy) {
+            Build first = builds.get(0);
+            Build last = builds.get(builds.size() - 1);
+            List<String> events = new ArrayList<String>();
+            EnvVars vars = new EnvVars();
+            for (Build build : builds) {
+                events.addAll(build.events);
+                for (Map.Entry<String, String> var : build.vars.entrySet()) {
+                    String value = vars.get(var.getKey());
+                    if (value == null || policy == EventCoalescer.MergePolicy.LAST) {
+                        vars.put(var.getKey(), var.getValue());
+                    } else if (policy == EventCoalescer.MergePolicy.LIST) {
+                        vars.put(var.getKey(), value + "\n" + var.getValue());
+                    }
+                }
+            }
+            return new Build(first.trigger, first.subscription, first.node, events, first.expression, vars, last.action);
+        }
+    }
+
+    /**
+     * Evaluates the filters and variables of the subscriptions against all
+     * the events of a batch.
+     *
+     * The builds are returned in the order of the events, and for each event
+     * in the order of the subscriptions.
+     *
+     * The filters and variables of a node with many subscriptions are
+     * evaluated in parallel, see ParallelEvaluator.
+     *
+     * @param events The events received together.
+     * @return The builds to be scheduled.
+     */
+    List<Build> evaluate(List<XMPPEvent> events) {
+        FilterIndex i = getIndex();
+        List<Build> builds = new ArrayList<Build>();
+        for (final XMPPEvent event : events) {
+            List<FilterIndex.Entry> matches = i.getMatches(event, parallel);
+            if (parallel == null) {
+                builds.addAll(resolve(event, matches));
+            } else {
+                builds.addAll(parallel.evaluate(matches, new ParallelEvaluator.Chunk<FilterIndex.Entry, Build>() {
+                    public List<Build> evaluate(List<FilterIndex.Entry> items, boolean first) {
+                        return resolve(first ? event : event.copy(), items);
+                    }
+                }));
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * Resolves the variables of the subscriptions matching an event.
+     *
+     * @return The builds of the subscriptions, in the same order.
+     */
+    private List<Build> resolve(XMPPEvent event, List<FilterIndex.Entry> matches) {
+        List<Build> builds = new ArrayList<Build>();
+        for (FilterIndex.Entry match : matches) {
+            SubscriptionProperties subs = match.subscription;
+            try {
+                EnvVars vars = new EnvVars();
+                for (Variable v : subs.getVariables()) {
+                    vars.put(v.getEnvName(), v.resolve(event));
+                }
+                ElOyenteEventAction action = subs.isFoldEvents() ? null : new ElOyenteEventAction(nodename, event.getId());
+                builds.add(new Build(match.trigger, subs, nodename, Collections.singletonList(event.getXML()),
+                        subs.getFilterXPath().getExpression(), vars, action));
+            } catch (XPathExpressionException ex) {
+                System.out.println("Exception: " + ex);
+                Logger.getLogger(ItemEventCoordinator.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * Logs the message of the XMPP event received.
+     */
+    private void print(List<XMPPEvent> events) {
+        if (!LOGGER.isLoggable(Level.FINE)) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("El item event coordinator es: ").append(this).append('\n');
+        sb.append(ElOyente.listeners.size()).append('\n');
+        for (ItemEventCoordinator listener : ElOyente.listeners.values()) {
+            sb.append("LISTENER: ").append(listener).append('\n');
+        }
+        sb.append(nodename).append(": Item count: ").append(events.size());
+        for (XMPPEvent event : events) {
+            sb.append('\n').append(nodename).append(": XML: ").append(event.getXML());
         }
-        System.out.println("-----------------------------");
+        LOGGER.fine(sb.toString());
     }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smackx.packet.DiscoverItems;
+import org.jivesoftware.smackx.pubsub.EventElement;
+import org.jivesoftware.smackx.pubsub.EventElementType;
+import org.jivesoftware.smackx.pubsub.PubSubManager;
+import org.jivesoftware.smackx.pubsub.packet.PubSubNamespace;
+
+/**
+ * The names of the pub/sub nodes of the XMPP server, discovered at most once
+ * per TTL.
+ *
+ * Checking whether a node exists is a lookup in the names discovered last,
+ * instead of a disco round trip listing all the nodes. The names are
+ * discovered again when the TTL expired, and they are updated when a node
+ * is created through this plugin or a deletion notification is received.
+ *
+ * The class is public so that ElBoca can use it too.
+ */
+public class NodeDirectory {
+
+    /**
+     * Default number of seconds the discovered names are used.
+     */
+    public static final int DEFAULT_TTL = 60;
+
+    /**
+     * Updates the directory on the pub/sub notifications of the connection.
+     */
+    private final PacketListener notifications = new PacketListener() {
+        public void processPacket(Packet packet) {
+            EventElement event = (EventElement) packet.getExtension("event", PubSubNamespace.EVENT.getXmlns());
+            if (event == null || event.getEventType() == null) {
+                return;
+            }
+            if (event.getEventType() == EventElementType.delete) {
+                removed(event.getEvent().getNode());
+            } else if (event.getEventType() == EventElementType.collection) {
+                // a node was added to or removed from a collection
+                invalidate();
+            }
+        }
+    };
+
+    private PubSubManager psm;
+    private Connection con;
+    private volatile long ttl;
+    /**
+     * The names discovered last, never modified, or null to discover them
+     * again.
+     */
+    private volatile Set<String> nodes;
+    private volatile long discovered;
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong discoveries = new AtomicLong();
+
+    /**
+     * Creates an empty directory.
+     *
+     * @param ttl Number of seconds the discovered names are used, 0 to
+     * discover them on every check.
+     */
+    public NodeDirectory(int ttl) {
+        configure(ttl);
+    }
+
+    /**
+     * Changes the number of seconds the discovered names are used.
+     */
+    public void configure(int ttl) {
+        this.ttl = TimeUnit.SECONDS.toNanos(Math.max(0, ttl));
+    }
+
+    /**
+     * Discovers the nodes through a connection to the server.
+     *
+     * The directory stops listening to the notifications of the previous
+     * connection, and listens to the ones of the new connection.
+     *
+     * @param con The connection, for the notifications.
+     * @param psm The manager of the connection, for the discoveries.
+     */
+    public synchronized void connect(Connection con, PubSubManager psm) {
+        if (this.con != null) {
+            this.con.removePacketListener(notifications);
+        }
+        this.con = con;
+        this.psm = psm;
+        if (con != null) {
+            con.addPacketListener(notifications, new PacketExtensionFilter("event", PubSubNamespace.EVENT.getXmlns()));
+        }
+    }
+
+    /**
+     * Checks whether a node exists.
+     *
+     * @param node The name of the node.
+     * @return true if the node was discovered, or created or not deleted
+     * since.
+     * @throws XMPPException if the nodes had to be discovered and it failed.
+     */
+    public boolean exists(String node) throws XMPPException {
+        return getNodes().contains(node);
+    }
+
+    /**
+     * Returns the names of all the nodes, discovering them if the TTL
+     * expired.
+     *
+     * @throws XMPPException if the nodes had to be discovered and it failed.
+     */
+    public Set<String> getNodes() throws XMPPException {
+        lookups.incrementAndGet();
+        Set<String> n = nodes;
+        if (n != null && System.nanoTime() - discovered < ttl) {
+            return n;
+        }
+        synchronized (this) {
+            // another thread may have discovered them in the meantime
+            n = nodes;
+            if (n != null && System.nanoTime() - discovered < ttl) {
+                return n;
+            }
+            discoveries.incrementAndGet();
+            n = discover();
+            nodes = n;
+            discovered = System.nanoTime();
+            return n;
+        }
+    }
+
+    /**
+     * Retrieves the names of all the nodes from the server.
+     */
+    Set<String> discover() throws XMPPException {
+        Set<String> names = new HashSet<String>();
+        Iterator<DiscoverItems.Item> items = psm.discoverNodes(null).getItems();
+        while (items.hasNext()) {
+            names.add(items.next().getNode());
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Records that a node was created.
+     */
+    public synchronized void added(String node) {
+        Set<String> n = nodes;
+        if (n != null && !n.contains(node)) {
+            Set<String> updated = new HashSet<String>(n);
+            updated.add(node);
+            nodes = Collections.unmodifiableSet(updated);
+        }
+    }
+
+    /**
+     * Records that a node was deleted.
+     */
+    public synchronized void removed(String node) {
+        Set<String> n = nodes;
+        if (n != null && n.contains(node)) {
+            Set<String> updated = new HashSet<String>(n);
+            updated.remove(node);
+            nodes = Collections.unmodifiableSet(updated);
+        }
+    }
+
+    /**
+     * Forgets the discovered names, they are discovered again on the next
+     * check.
+     */
+    public synchronized void invalidate() {
+        nodes = null;
+    }
+
+    /**
+     * Returns the number of nodes known, without discovering them.
+     */
+    int getSize() {
+        Set<String> n = nodes;
+        return n == null ? 0 : n.size();
+    }
+
+    long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * Returns the number of disco round trips made.
+     */
+    long getDiscoveryCount() {
+        return discoveries.get();
+    }
+}
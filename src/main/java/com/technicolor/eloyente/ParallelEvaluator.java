@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits the evaluation of the filters and variables of a node with many
+ * subscriptions into chunks evaluated in parallel.
+ *
+ * Lists shorter than the threshold are evaluated on the calling thread. The
+ * longer ones are split in one chunk per thread of the pool plus one, the
+ * first chunk is evaluated by the calling thread and the others by the pool.
+ * The results are returned in the order of the list.
+ *
+ * The chunks must not share a parsed event: a DOM document cannot be read by
+ * several threads at the same time, so every chunk but the first uses its
+ * own copy of the event, see XMPPEvent.copy().
+ */
+final class ParallelEvaluator {
+
+    /**
+     * The evaluation of a chunk of a list.
+     */
+    interface Chunk<I, R> {
+
+        /**
+         * Evaluates some items of the list.
+         *
+         * @param items The items of the chunk.
+         * @param first True for the chunk evaluated by the calling thread.
+         * @return The results, in the order of the items.
+         */
+        List<R> evaluate(List<I> items, boolean first);
+    }
+
+    static final int DEFAULT_THRESHOLD = 500;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ElOyente evaluator " + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final ExecutorService pool;
+    private final int threads;
+    private volatile int threshold;
+    private final AtomicLong split = new AtomicLong();
+
+    /**
+     * Creates an evaluator with one thread per processor.
+     *
+     * @param threshold Size from which a list is split, 0 to never split.
+     */
+    ParallelEvaluator(int threshold) {
+        this(Runtime.getRuntime().availableProcessors(), threshold);
+    }
+
+    ParallelEvaluator(int threads, int threshold) {
+        this.threads = Math.max(1, threads);
+        this.pool = Executors.newFixedThreadPool(this.threads, THREAD_FACTORY);
+        configure(threshold);
+    }
+
+    /**
+     * Changes the size from which a list is split, 0 to never split.
+     */
+    void configure(int threshold) {
+        this.threshold = Math.max(0, threshold);
+    }
+
+    /**
+     * Evaluates a list, in parallel if it is long enough.
+     *
+     * @param items The items to evaluate.
+     * @param chunk The evaluation of a part of the list.
+     * @return The results of all the chunks, in the order of the items.
+     */
+    <I, R> List<R> evaluate(List<I> items, Chunk<I, R> chunk) {
+        int t = threshold;
+        if (t == 0 || items.size() < t || items.size() < 2) {
+            return chunk.evaluate(items, true);
+        }
+        split.incrementAndGet();
+        int chunks = Math.min(threads + 1, items.size());
+        int size = (items.size() + chunks - 1) / chunks;
+        List<Future<List<R>>> futures = new ArrayList<Future<List<R>>>();
+        for (int from = size; from < items.size(); from += size) {
+            final List<I> part = items.subList(from, Math.min(from + size, items.size()));
+            final Chunk<I, R> c = chunk;
+            futures.add(pool.submit(new Callable<List<R>>() {
+                public List<R> call() {
+                    return c.evaluate(part, false);
+                }
+            }));
+        }
+        List<R> results = new ArrayList<R>(chunk.evaluate(items.subList(0, size), true));
+        try {
+            for (Future<List<R>> future : futures) {
+                results.addAll(future.get());
+            }
+        } catch (InterruptedException ex) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while evaluating the filters", ex);
+        } catch (ExecutionException ex) {
+            cancel(futures);
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        return results;
+    }
+
+    private static void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Stops the threads of the pool.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns the number of lists which were split.
+     */
+    long getSplitCount() {
+        return split.get();
+    }
+}
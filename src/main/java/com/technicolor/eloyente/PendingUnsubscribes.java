@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The unsubscriptions from the nodes nobody listens to anymore, delayed by a
+ * grace period.
+ *
+ * When a job is saved, Jenkins stops its trigger and starts the new one right
+ * after. The stopped trigger stops scheduling builds at once, but the nodes
+ * it was the last one to listen to are only unsubscribed once the grace
+ * period is over: the new trigger of the job cancels the unsubscription of
+ * the nodes it listens to again, so only the nodes removed from the job are
+ * unsubscribed, and the nodes kept are not subscribed again.
+ *
+ * The unsubscriptions are requests to the XMPP server, they run on a thread
+ * of their own so a slow server delays nothing else.
+ */
+abstract class PendingUnsubscribes {
+
+    /**
+     * Default number of seconds an unsubscription is delayed.
+     */
+    static final int DEFAULT_GRACE = 30;
+
+    private final class Pending implements Runnable {
+
+        private final String node;
+        private ScheduledFuture<?> expiry;
+
+        Pending(String node) {
+            this.node = node;
+        }
+
+        public void run() {
+            synchronized (PendingUnsubscribes.this) {
+                if (pending.get(node) != this) {
+                    return;
+                }
+                pending.remove(node);
+            }
+            expire(node);
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+    private volatile int grace;
+    /**
+     * (Key: node name ; Value: its unsubscription).
+     */
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong unsubscribed = new AtomicLong();
+
+    /**
+     * @param grace Number of seconds an unsubscription is delayed, 0 to
+     * never delay them.
+     */
+    PendingUnsubscribes(int grace) {
+        this(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ElOyente unsubscriber");
+                t.setDaemon(true);
+                return t;
+            }
+        }), grace);
+    }
+
+    /**
+     * @param executor Runs the unsubscriptions, a single thread.
+     * @param grace Number of seconds an unsubscription is delayed, 0 to
+     * never delay them.
+     */
+    PendingUnsubscribes(ScheduledExecutorService executor, int grace) {
+        this.executor = executor;
+        configure(grace);
+    }
+
+    /**
+     * Changes the number of seconds an unsubscription is delayed, 0 to never
+     * delay them.
+     */
+    void configure(int grace) {
+        this.grace = Math.max(0, grace);
+    }
+
+    /**
+     * Delays the unsubscription from a node by the grace period.
+     *
+     * @return false if the unsubscriptions are not delayed, then the node
+     * must be unsubscribed at once.
+     */
+    synchronized boolean defer(String node) {
+        int g = grace;
+        if (g == 0) {
+            return false;
+        }
+        if (!pending.containsKey(node)) {
+            Pending p = new Pending(node);
+            pending.put(node, p);
+            p.expiry = executor.schedule(p, g, TimeUnit.SECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Runs a task on the thread of the unsubscriptions once the grace period
+     * is over.
+     *
+     * @return false if the unsubscriptions are not delayed, then the task is
+     * not run.
+     */
+    boolean delay(Runnable task) {
+        int g = grace;
+        if (g == 0) {
+            return false;
+        }
+        executor.schedule(task, g, TimeUnit.SECONDS);
+        return true;
+    }
+
+    /**
+     * Cancels the unsubscription from a node, somebody listens to it again.
+     */
+    synchronized void cancel(String node) {
+        Pending p = pending.remove(node);
+        if (p != null) {
+            p.expiry.cancel(false);
+            cancelled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Unsubscribes from all the nodes at once, on the calling thread.
+     */
+    void flush() {
+        List<String> nodes = new ArrayList<String>();
+        synchronized (this) {
+            for (Pending p : pending.values()) {
+                p.expiry.cancel(false);
+                nodes.add(p.node);
+            }
+            pending.clear();
+        }
+        for (String node : nodes) {
+            expire(node);
+        }
+    }
+
+    private void expire(String node) {
+        unsubscribed.incrementAndGet();
+        try {
+            unsubscribe(node);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(PendingUnsubscribes.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Unsubscribes from a node, unless somebody listens to it again.
+     */
+    abstract void unsubscribe(String node);
+
+    synchronized int getSize() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of unsubscriptions cancelled, the subscription was
+     * kept.
+     */
+    long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    long getUnsubscribedCount() {
+        return unsubscribed.get();
+    }
+}
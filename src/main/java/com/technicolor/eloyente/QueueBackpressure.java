@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Holds back the builds while the Jenkins build queue is too long.
+ *
+ * Every build added to a long queue makes the maintenance of the queue more
+ * expensive. When the number of queued items reaches the high watermark, the
+ * builds enter a degraded mode: they are buffered, coalesced, or the builds of
+ * low priority subscriptions are dropped. Normal scheduling resumes, and the
+ * buffered builds are released, once the queue went down to the low
+ * watermark.
+ *
+ * The length of the queue is read at most once per second.
+ */
+class QueueBackpressure {
+
+    private static final Logger LOGGER = Logger.getLogger(QueueBackpressure.class.getName());
+
+    /**
+     * What happens with the builds in degraded mode.
+     */
+    enum DegradedMode {
+
+        /**
+         * Keep the builds until the queue is short again.
+         */
+        BUFFER,
+        /**
+         * Merge the builds of a subscription, see EventCoalescer.
+         */
+        COALESCE,
+        /**
+         * Drop the builds of low priority subscriptions, schedule the others.
+         */
+        DROP_LOW_PRIORITY
+    }
+
+    static final DegradedMode DEFAULT_MODE = DegradedMode.BUFFER;
+    /**
+     * Maximum number of buffered builds, the oldest are dropped beyond it.
+     */
+    static final int MAX_BUFFERED = 10000;
+    /**
+     * Seconds between two checks of the queue while builds are held back.
+     */
+    private static final int CHECK_PERIOD = 1;
+    /**
+     * Length of the coalescing windows in degraded mode, in seconds.
+     */
+    private static final int COALESCE_WINDOW = 10;
+
+    private final ScheduledExecutorService executor;
+    private final EventCoalescer coalescer;
+    private final RateLimiter limiter;
+    private volatile int highWatermark;
+    private volatile int lowWatermark;
+    private volatile DegradedMode mode = DEFAULT_MODE;
+    private volatile boolean degraded;
+    /**
+     * Nanoseconds during which the length of the queue read last is used.
+     */
+    long samplePeriod = TimeUnit.SECONDS.toNanos(1);
+    private int depth;
+    private long sampled;
+    private boolean checking;
+    private final LinkedList<ItemEventCoordinator.Build> buffer = new LinkedList<ItemEventCoordinator.Build>();
+    private final AtomicLong buffered = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a disabled backpressure.
+     *
+     * @param executor Checks the queue while builds are buffered.
+     * @param coalescer Merges the builds in COALESCE mode.
+     * @param limiter Schedules the released builds.
+     */
+    QueueBackpressure(ScheduledExecutorService executor, EventCoalescer coalescer, RateLimiter limiter) {
+        this.executor = executor;
+        this.coalescer = coalescer;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Changes the watermarks, a high watermark of 0 disables the
+     * backpressure.
+     */
+    void configure(int highWatermark, int lowWatermark, DegradedMode mode) {
+        this.highWatermark = Math.max(0, highWatermark);
+        this.lowWatermark = Math.max(0, Math.min(lowWatermark, highWatermark));
+        this.mode = (mode == null ? DEFAULT_MODE : mode);
+    }
+
+    /**
+     * Reads the number of items in the Jenkins build queue.
+     */
+    int readQueueDepth() {
+        return Jenkins.getInstance().getQueue().getItems().length;
+    }
+
+    /**
+     * Returns the number of items in the Jenkins build queue, as read at most
+     * one second ago.
+     */
+    synchronized int getQueueDepth() {
+        long now = System.nanoTime();
+        if (sampled == 0 || now - sampled >= samplePeriod) {
+            depth = readQueueDepth();
+            sampled = now;
+        }
+        return depth;
+    }
+
+    /**
+     * Updates the mode from the length of the queue.
+     *
+     * @return true if the builds must be held back.
+     */
+    boolean isDegraded() {
+        int high = highWatermark;
+        if (high == 0) {
+            degraded = false;
+            return false;
+        }
+        int d = getQueueDepth();
+        if (!degraded && d >= high) {
+            degraded = true;
+            LOGGER.log(Level.WARNING, "Jenkins queue has {0} items, holding back the XMPP triggered builds", d);
+        } else if (degraded && d <= lowWatermark) {
+            degraded = false;
+            LOGGER.log(Level.INFO, "Jenkins queue has {0} items, resuming the XMPP triggered builds", d);
+        }
+        return degraded;
+    }
+
+    /**
+     * Holds back a build if the queue is too long.
+     *
+     * @param build The build.
+     * @return false if the build can be scheduled now.
+     */
+    boolean hold(ItemEventCoordinator.Build build) {
+        if (!isDegraded()) {
+            return false;
+        }
+        switch (mode) {
+            case BUFFER:
+                buffer(build);
+                return true;
+            case COALESCE:
+                coalesced.incrementAndGet();
+                coalescer.add(build, COALESCE_WINDOW);
+                return true;
+            case DROP_LOW_PRIORITY:
+                if (build.subscription.isLowPriority()) {
+                    dropped.incrementAndGet();
+                    return true;
+                }
+                return false;
+        }
+        return false;
+    }
+
+    private synchronized void buffer(ItemEventCoordinator.Build build) {
+        buffer.add(build);
+        buffered.incrementAndGet();
+        if (buffer.size() > MAX_BUFFERED) {
+            buffer.removeFirst();
+            dropped.incrementAndGet();
+        }
+        if (!checking) {
+            checking = true;
+            executor.schedule(new Runnable() {
+                public void run() {
+                    check();
+                }
+            }, CHECK_PERIOD, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Releases the buffered builds if the queue is short again, or checks
+     * again later.
+     */
+    void check() {
+        List<ItemEventCoordinator.Build> released;
+        synchronized (this) {
+            if (isDegraded() && mode == DegradedMode.BUFFER) {
+                executor.schedule(new Runnable() {
+                    public void run() {
+                        check();
+                    }
+                }, CHECK_PERIOD, TimeUnit.SECONDS);
+                return;
+            }
+            checking = false;
+            released = new ArrayList<ItemEventCoordinator.Build>(buffer);
+            buffer.clear();
+        }
+        for (ItemEventCoordinator.Build build : released) {
+            try {
+                limiter.schedule(build);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.SEVERE, "Failed to schedule a buffered build", ex);
+            }
+        }
+    }
+
+    DegradedMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the number of builds waiting for the queue to go down.
+     */
+    synchronized int getBufferSize() {
+        return buffer.size();
+    }
+
+    long getBufferedCount() {
+        return buffered.get();
+    }
+
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+}
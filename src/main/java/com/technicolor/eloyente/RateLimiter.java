@@ -0,0 +1,450 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of builds scheduled for the XMPP events, globally, per
+ * node and per job.
+ *
+ * Every limit is a token bucket: it allows a number of builds per minute,
+ * and up to that number at once after a quiet period. A build is scheduled
+ * when all of its buckets have a token left. Otherwise the throttle action
+ * decides what happens with it.
+ *
+ * The delayed builds wait in a bounded FIFO queue per bucket, drained by one
+ * timer at the rate the bucket refills, so a flood of events neither wakes
+ * every delayed build for each token nor piles up timers. A build whose
+ * bucket has builds waiting already waits behind them.
+ *
+ * A bucket unused for a whole refill period is full again, just like a new
+ * one, so the buckets of the nodes and jobs which are idle are evicted, and
+ * those of the deleted nodes and jobs do not pile up.
+ */
+class RateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(RateLimiter.class.getName());
+
+    /**
+     * What to do with a build which exceeds a limit.
+     */
+    enum ThrottleAction {
+
+        /**
+         * Drop the build.
+         */
+        DROP,
+        /**
+         * Schedule the build once the limits allow it.
+         */
+        DELAY,
+        /**
+         * Merge the build with the other builds of its subscription until
+         * the limits allow it, see EventCoalescer.
+         */
+        COALESCE
+    }
+
+    static final ThrottleAction DEFAULT_ACTION = ThrottleAction.DELAY;
+    /**
+     * Maximum number of builds delayed per bucket, the others are dropped.
+     */
+    static final int DEFAULT_MAX_DELAYED = 1000;
+    /**
+     * Nanoseconds in which an empty bucket is full again.
+     */
+    private static final long REFILL_PERIOD = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * A token bucket.
+     */
+    static final class TokenBucket {
+
+        private final double capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long last;
+
+        /**
+         * Creates a full bucket.
+         *
+         * @param perMinute Number of tokens added per minute, which is also
+         * the number of tokens the bucket can hold.
+         */
+        TokenBucket(int perMinute, long now) {
+            this.capacity = perMinute;
+            this.tokensPerNano = perMinute / (double) TimeUnit.MINUTES.toNanos(1);
+            this.tokens = perMinute;
+            this.last = now;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - last) * tokensPerNano);
+            last = now;
+        }
+
+        boolean hasToken(long now) {
+            refill(now);
+            return tokens >= 1;
+        }
+
+        void take() {
+            tokens -= 1;
+        }
+
+        /**
+         * Returns true if the bucket was not used for a refill period, then
+         * it is full.
+         */
+        boolean isIdle(long now) {
+            return now - last >= REFILL_PERIOD;
+        }
+
+        /**
+         * Returns the number of nanoseconds until the bucket has a token.
+         */
+        long waitTime(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+    }
+
+    /**
+     * The builds delayed by a bucket, released by one timer.
+     */
+    private final class Delayed implements Runnable {
+
+        private final String key;
+        private final LinkedList<ItemEventCoordinator.Build> builds = new LinkedList<ItemEventCoordinator.Build>();
+
+        Delayed(String key) {
+            this.key = key;
+        }
+
+        public void run() {
+            List<ItemEventCoordinator.Build> ready = new ArrayList<ItemEventCoordinator.Build>();
+            synchronized (RateLimiter.this) {
+                long now = System.nanoTime();
+                while (!builds.isEmpty()) {
+                    ItemEventCoordinator.Build build = builds.getFirst();
+                    long wait = acquire(build.node, build.getJobName(), now);
+                    if (wait > 0) {
+                        executor.schedule(this, wait, TimeUnit.NANOSECONDS);
+                        break;
+                    }
+                    ready.add(builds.removeFirst());
+                }
+                if (builds.isEmpty()) {
+                    queues.remove(key);
+                }
+            }
+            for (ItemEventCoordinator.Build build : ready) {
+                release(build);
+            }
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+    private final EventCoalescer coalescer;
+    private final int maxDelayed;
+    private int globalLimit;
+    private int nodeLimit;
+    private int jobLimit;
+    private volatile ThrottleAction action = DEFAULT_ACTION;
+    private TokenBucket global;
+    /**
+     * (Key: node name ; Value: its bucket).
+     */
+    private final Map<String, TokenBucket> nodes = new HashMap<String, TokenBucket>();
+    /**
+     * (Key: job name ; Value: its bucket).
+     */
+    private final Map<String, TokenBucket> jobs = new HashMap<String, TokenBucket>();
+    /**
+     * (Key: bucket, see key(String, String) ; Value: the builds it delays).
+     */
+    private final Map<String, Delayed> queues = new HashMap<String, Delayed>();
+    /**
+     * When the idle buckets were evicted last.
+     */
+    private long evicted;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Creates a rate limiter without limits.
+     *
+     * @param executor Runs the delayed builds.
+     * @param coalescer Merges the coalesced builds.
+     */
+    RateLimiter(ScheduledExecutorService executor, EventCoalescer coalescer) {
+        this(executor, coalescer, DEFAULT_MAX_DELAYED);
+    }
+
+    /**
+     * @param maxDelayed Maximum number of builds delayed per bucket.
+     */
+    RateLimiter(ScheduledExecutorService executor, EventCoalescer coalescer, int maxDelayed) {
+        this.executor = executor;
+        this.coalescer = coalescer;
+        this.maxDelayed = maxDelayed;
+    }
+
+    /**
+     * Changes the limits, in builds per minute, 0 for no limit.
+     */
+    synchronized void configure(int globalLimit, int nodeLimit, int jobLimit, ThrottleAction action) {
+        this.globalLimit = Math.max(0, globalLimit);
+        this.nodeLimit = Math.max(0, nodeLimit);
+        this.jobLimit = Math.max(0, jobLimit);
+        this.action = (action == null ? DEFAULT_ACTION : action);
+        this.global = null;
+        this.nodes.clear();
+        this.jobs.clear();
+    }
+
+    /**
+     * Schedules a build if the limits allow it, and applies the throttle
+     * action otherwise.
+     *
+     * @param build The build.
+     */
+    void schedule(ItemEventCoordinator.Build build) {
+        String node = build.node;
+        String job = build.getJobName();
+        long wait;
+        ThrottleAction a = action;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (a == ThrottleAction.DELAY) {
+                String key = waiting(node, job);
+                if (key != null) {
+                    delay(key, build, 0);
+                    return;
+                }
+            }
+            wait = acquire(node, job, now);
+            if (wait > 0 && a == ThrottleAction.DELAY) {
+                delay(limiting(node, job, now), build, wait);
+                return;
+            }
+        }
+        if (wait == 0) {
+            release(build);
+            return;
+        }
+        switch (a) {
+            case DROP:
+                drop(build);
+                break;
+            case COALESCE:
+                coalesced.incrementAndGet();
+                coalescer.add(build, Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait)));
+                break;
+        }
+    }
+
+    /**
+     * Schedules a build which got its tokens.
+     */
+    void release(ItemEventCoordinator.Build build) {
+        try {
+            build.schedule();
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, "Failed to schedule a build", ex);
+        }
+    }
+
+    private void drop(ItemEventCoordinator.Build build) {
+        long n = dropped.incrementAndGet();
+        LOGGER.log(Level.WARNING, "Build of {0} for node {1} dropped by the rate limit ({2} dropped so far)",
+                new Object[]{build.getJobName(), build.node, n});
+    }
+
+    /**
+     * Adds a build to the queue of a bucket, and starts the timer of the
+     * queue if it is empty.
+     *
+     * @param wait Nanoseconds until the bucket has a token.
+     */
+    private void delay(String key, ItemEventCoordinator.Build build, long wait) {
+        Delayed queue = queues.get(key);
+        if (queue == null) {
+            queue = new Delayed(key);
+            queues.put(key, queue);
+            executor.schedule(queue, wait, TimeUnit.NANOSECONDS);
+        } else if (queue.builds.size() >= maxDelayed) {
+            drop(build);
+            return;
+        }
+        queue.builds.addLast(build);
+        delayed.incrementAndGet();
+    }
+
+    /**
+     * Returns the key of a bucket of a build which delays builds already, or
+     * null.
+     */
+    private String waiting(String node, String job) {
+        String[] keys = {key(null, null), key("node", node), key("job", job)};
+        for (String key : keys) {
+            if (queues.containsKey(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the key of the bucket of a build which has to wait the longest.
+     */
+    private String limiting(String node, String job, long now) {
+        String key = key(null, null);
+        long wait = waitTime(globalLimit > 0 ? global : null, now);
+        long n = waitTime(nodeLimit > 0 ? nodes.get(node) : null, now);
+        if (n > wait) {
+            key = key("node", node);
+            wait = n;
+        }
+        if (waitTime(jobLimit > 0 ? jobs.get(job) : null, now) > wait) {
+            key = key("job", job);
+        }
+        return key;
+    }
+
+    private static String key(String kind, String name) {
+        return kind == null ? "global" : kind + ":" + name;
+    }
+
+    /**
+     * Returns the number of builds waiting for a token.
+     */
+    synchronized int getDelayedSize() {
+        int size = 0;
+        for (Delayed queue : queues.values()) {
+            size += queue.builds.size();
+        }
+        return size;
+    }
+
+    /**
+     * Takes a token from every bucket of a build if they all have one.
+     *
+     * @return 0 if the tokens were taken, or else the number of nanoseconds
+     * until they are all available.
+     */
+    synchronized long acquire(String node, String job, long now) {
+        TokenBucket g = null;
+        TokenBucket n = null;
+        TokenBucket j = null;
+        if (now - evicted >= REFILL_PERIOD) {
+            evictIdle(nodes, now);
+            evictIdle(jobs, now);
+            evicted = now;
+        }
+        if (globalLimit > 0) {
+            if (global == null) {
+                global = new TokenBucket(globalLimit, now);
+            }
+            g = global;
+        }
+        if (nodeLimit > 0) {
+            n = bucket(nodes, node, nodeLimit, now);
+        }
+        if (jobLimit > 0) {
+            j = bucket(jobs, job, jobLimit, now);
+        }
+        long wait = Math.max(waitTime(g, now), Math.max(waitTime(n, now), waitTime(j, now)));
+        if (wait > 0) {
+            return wait;
+        }
+        take(g);
+        take(n);
+        take(j);
+        return 0;
+    }
+
+    private static TokenBucket bucket(Map<String, TokenBucket> buckets, String key, int limit, long now) {
+        TokenBucket b = buckets.get(key);
+        if (b == null) {
+            b = new TokenBucket(limit, now);
+            buckets.put(key, b);
+        }
+        return b;
+    }
+
+    private static void evictIdle(Map<String, TokenBucket> buckets, long now) {
+        for (Iterator<TokenBucket> it = buckets.values().iterator(); it.hasNext();) {
+            if (it.next().isIdle(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buckets of the nodes and jobs.
+     */
+    synchronized int getBucketCount() {
+        return nodes.size() + jobs.size();
+    }
+
+    private static long waitTime(TokenBucket b, long now) {
+        return b == null ? 0 : b.waitTime(now);
+    }
+
+    private static void take(TokenBucket b) {
+        if (b != null) {
+            b.take();
+        }
+    }
+
+    ThrottleAction getAction() {
+        return action;
+    }
+
+    /**
+     * Returns the number of builds dropped by the limits.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of builds delayed by the limits.
+     */
+    long getDelayedCount() {
+        return delayed.get();
+    }
+
+    /**
+     * Returns the number of builds merged because of the limits.
+     */
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+}
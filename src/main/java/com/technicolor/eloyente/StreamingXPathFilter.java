@@ -0,0 +1,504 @@
+/*
+   Copyright 2012 Technicolor
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.technicolor.eloyente;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.stream.*;
+
+/**
+ * Streaming evaluation of simple XPath filters.
+ * <p>
+ * Most filters are plain location paths, like
+ * <tt>/item/build[@branch='main']/status</tt>.  To test such a filter
+ * there is no need to build a DOM: this class compiles the expression
+ * into a small state machine which is driven by a StAX parser, and which
+ * stops reading the event as soon as the result is known.
+ * <p>
+ * Only a subset of XPath is supported: absolute paths made of child
+ * (<tt>/</tt>) and descendant (<tt>//</tt>) steps, where each step is an
+ * element name or <tt>*</tt>, optionally followed by attribute predicates
+ * of the form <tt>[@name]</tt> or <tt>[@name='value']</tt>.  For any
+ * other expression compile() returns null, and the caller has to use
+ * the JAXP implementation instead.
+ */
+
+final class StreamingXPathFilter {
+
+	// the state of the matching is kept in a bit mask per element
+	private static final int MAX_STEPS = 64;
+
+	/**
+	 * XMLInputFactory is not guaranteed to be thread-safe, so every thread
+	 * creates its readers with its own factory.
+	 */
+	private static final ThreadLocal<XMLInputFactory> inputFactory = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue() {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			// the DOM used by XPathExpressionHandler is not namespace aware either
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+			return factory;
+		}
+	};
+
+	private final String expression;
+	private final Step[] steps;
+
+	private StreamingXPathFilter(String expression, Step[] steps) {
+		this.expression = expression;
+		this.steps = steps;
+	}
+
+	/**
+	 * Compile an expression
+	 * <p>
+	 * @param expression An expression in XPath notation
+	 * @return The compiled filter, or null if the expression is not supported
+	 */
+	static StreamingXPathFilter compile(String expression) {
+		if (null == expression) return null;
+		Step[] steps = new Parser(expression.trim()).parse();
+		if (null == steps) return null;
+		return new StreamingXPathFilter(expression, steps);
+	}
+
+	/**
+	 * Function to retrieve the expression.
+	 * <p>
+	 * @return The expression this filter was compiled from
+	 */
+	String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Function to retrieve the element names every match starts with.
+	 * <p>
+	 * These are the names of the leading child steps of the expression:
+	 * <tt>/item/build[@branch='main']//status</tt> only matches documents
+	 * with an <tt>item</tt> root element which has a <tt>build</tt> child
+	 * element.  The prefix stops at the first descendant or <tt>*</tt> step.
+	 *
+	 * @param max The maximum number of names to return
+	 * @return The names, possibly none
+	 */
+	String[] getPrefix(int max) {
+		List<String> prefix = new ArrayList<String>();
+		for (Step step : steps) {
+			if (prefix.size() == max || step.descendant || null == step.name) break;
+			prefix.add(step.name);
+		}
+		return prefix.toArray(new String[prefix.size()]);
+	}
+
+	/**
+	 * Split the filter into a path and an attribute equality test.
+	 * <p>
+	 * A filter like <tt>/item/push[@repo='a']</tt> is true if and only if
+	 * <tt>a</tt> is one of the values of the <tt>repo</tt> attribute of the
+	 * elements matching <tt>/item/push</tt>.  Filters which only differ in
+	 * the value can thus be decided together, with a single extraction of
+	 * the attribute values.  This is only possible if the last step of the
+	 * filter has exactly one predicate with a value.
+	 *
+	 * @return The equality test, or null if the filter has no such form
+	 */
+	Equality getEquality() {
+		Step lastStep = steps[steps.length - 1];
+		int found = -1;
+		for (int i = 0; i < lastStep.attributeValues.length; i++) {
+			if (null != lastStep.attributeValues[i]) {
+				if (found >= 0) return null;
+				found = i;
+			}
+		}
+		if (found < 0) return null;
+
+		StringBuilder path = new StringBuilder();
+		for (Step step : steps) {
+			path.append(step.descendant ? "//" : "/");
+			path.append(null == step.name ? "*" : step.name);
+			for (int i = 0; i < step.attributeNames.length; i++) {
+				if (step == lastStep && i == found) continue;
+				path.append("[@").append(step.attributeNames[i]);
+				String value = step.attributeValues[i];
+				if (null != value) {
+					char quote = (value.indexOf('\'') >= 0 ? '"' : '\'');
+					path.append('=').append(quote).append(value).append(quote);
+				}
+				path.append(']');
+			}
+		}
+		return new Equality(path.toString(), lastStep.attributeNames[found], lastStep.attributeValues[found]);
+	}
+
+	/**
+	 * The parts of a filter of the form <tt>path[@attribute='value']</tt>.
+	 */
+	static final class Equality {
+		final String path;
+		final String attribute;
+		final String value;
+
+		Equality(String path, String attribute, String value) {
+			this.path = path;
+			this.attribute = attribute;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Collect the values of an attribute of the elements matching the filter.
+	 * <p>
+	 * @param xml The XML document to read
+	 * @param attribute The name of the attribute
+	 * @return The values found, which is empty if the document is malformed,
+	 * or null if the document can not be handled by this class
+	 */
+	Set<String> collect(String xml, String attribute) {
+		Set<String> values = new HashSet<String>();
+		if (null == xml) return values;
+		XMLStreamReader reader = null;
+		try {
+			reader = inputFactory.get().createXMLStreamReader(new StringReader(xml));
+			if (null == run(reader, attribute, values, false)) return null;
+			return values;
+		} catch (XMLStreamException e) {
+			values.clear();
+			return values;
+		} finally {
+			if (null != reader) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// nothing left to clean up
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the names of the root element and of its child elements.
+	 * <p>
+	 * This is used to find out which filters can possibly match an event,
+	 * see getPrefix().
+	 *
+	 * @param xml The XML document to read
+	 * @return The name of the root element followed by the names of its
+	 * children, or null if the document can not be handled by this class
+	 */
+	static List<String> getTopLevelNames(String xml) {
+		if (null == xml) return null;
+		XMLStreamReader reader = null;
+		try {
+			reader = inputFactory.get().createXMLStreamReader(new StringReader(xml));
+			List<String> names = new ArrayList<String>();
+			int depth = -1;
+			while (reader.hasNext()) {
+				int type = reader.next();
+				if (XMLStreamConstants.DTD == type) {
+					return null;
+				} else if (XMLStreamConstants.END_ELEMENT == type) {
+					depth--;
+				} else if (XMLStreamConstants.START_ELEMENT == type) {
+					depth++;
+					if (depth > 1) continue;
+					String name = reader.getLocalName();
+					if (name.indexOf(':') >= 0) return null;
+					names.add(name);
+				}
+			}
+			return names;
+		} catch (XMLStreamException e) {
+			return null;
+		} finally {
+			if (null != reader) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// nothing left to clean up
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test the filter
+	 * <p>
+	 * The XML document is read until a matching element is found.  If
+	 * the document is not known to be well-formed, the rest of it is
+	 * still read after a match, so that a malformed document never
+	 * passes the filter (this is how the DOM based implementation
+	 * behaves).
+	 *
+	 * @param xml The XML document to evaluate
+	 * @param wellFormed True if the document is known to be well-formed
+	 * @return TRUE or FALSE, or null if the document uses constructs this
+	 * class does not handle (namespace prefixes, DTDs), in which case the
+	 * caller has to fall back to the DOM
+	 */
+	Boolean test(String xml, boolean wellFormed) {
+		if (null == xml) return Boolean.FALSE;
+		XMLStreamReader reader = null;
+		try {
+			reader = inputFactory.get().createXMLStreamReader(new StringReader(xml));
+			return run(reader, null, null, wellFormed);
+		} catch (XMLStreamException e) {
+			// malformed XML messages never pass a filter
+			return Boolean.FALSE;
+		} finally {
+			if (null != reader) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// nothing left to clean up
+				}
+			}
+		}
+	}
+
+	private Boolean run(XMLStreamReader reader, String attribute, Set<String> values, boolean wellFormed) throws XMLStreamException {
+		final long last = 1L << (steps.length - 1);
+		// matched[d]: steps matched by the open element at depth d
+		// reached[d]: steps matched by the open element at depth d or one of its ancestors
+		long[] matched = new long[16];
+		long[] reached = new long[16];
+		int depth = -1;
+		boolean found = false;
+
+		while (reader.hasNext()) {
+			int type = reader.next();
+			if (XMLStreamConstants.DTD == type) {
+				return null;
+			} else if (XMLStreamConstants.END_ELEMENT == type) {
+				depth--;
+			} else if (XMLStreamConstants.START_ELEMENT == type) {
+				depth++;
+				if (depth == matched.length) {
+					matched = grow(matched);
+					reached = grow(reached);
+				}
+				if (found) continue;
+
+				String name = reader.getLocalName();
+				if (name.indexOf(':') >= 0) return null;
+				long parentMatched = (depth > 0 ? matched[depth - 1] : 0L);
+				long parentReached = (depth > 0 ? reached[depth - 1] : 0L);
+				long m = 0L;
+				for (int i = 0; i < steps.length; i++) {
+					Step step = steps[i];
+					boolean context;
+					if (i == 0) {
+						context = step.descendant || depth == 0;
+					} else if (step.descendant) {
+						context = (parentReached & (1L << (i - 1))) != 0;
+					} else {
+						context = (parentMatched & (1L << (i - 1))) != 0;
+					}
+					if (context && step.matches(name)) {
+						Boolean attributes = step.matchesAttributes(reader);
+						if (null == attributes) return null;
+						if (attributes.booleanValue()) m |= (1L << i);
+					}
+				}
+				matched[depth] = m;
+				reached[depth] = parentReached | m;
+
+				if ((m & last) != 0 && null != values) {
+					// collecting: keep going until the end of the document
+					if (hasPrefixedAttributes(reader)) return null;
+					String value = getAttributeValue(reader, attribute);
+					if (null != value) values.add(value);
+				} else if ((m & last) != 0) {
+					if (wellFormed) return Boolean.TRUE;
+					found = true;
+				} else if (depth == 0 && m == 0 && !steps[0].descendant) {
+					// the root element does not match, nothing else can
+					return Boolean.FALSE;
+				}
+			}
+		}
+		return Boolean.valueOf(found);
+	}
+
+	private static boolean hasPrefixedAttributes(XMLStreamReader reader) {
+		for (int j = 0; j < reader.getAttributeCount(); j++) {
+			String prefix = reader.getAttributePrefix(j);
+			if (null != prefix && prefix.length() > 0 && !"xmlns".equals(prefix)) return true;
+		}
+		return false;
+	}
+
+	private static String getAttributeValue(XMLStreamReader reader, String name) {
+		for (int j = 0; j < reader.getAttributeCount(); j++) {
+			String prefix = reader.getAttributePrefix(j);
+			String local = reader.getAttributeLocalName(j);
+			if ("xmlns".equals(local)) continue;
+			if ((null == prefix || prefix.length() == 0) && name.equals(local)) {
+				return reader.getAttributeValue(j);
+			}
+		}
+		return null;
+	}
+
+	private static long[] grow(long[] a) {
+		long[] b = new long[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/**
+	 * One location step of the expression.
+	 */
+	private static final class Step {
+		final boolean descendant;
+		final String name;
+		final String[] attributeNames;
+		final String[] attributeValues;
+
+		Step(boolean descendant, String name, List<String> attributeNames, List<String> attributeValues) {
+			this.descendant = descendant;
+			this.name = name;
+			this.attributeNames = attributeNames.toArray(new String[attributeNames.size()]);
+			this.attributeValues = attributeValues.toArray(new String[attributeValues.size()]);
+		}
+
+		boolean matches(String elementName) {
+			return null == name || name.equals(elementName);
+		}
+
+		Boolean matchesAttributes(XMLStreamReader reader) {
+			for (int i = 0; i < attributeNames.length; i++) {
+				boolean present = false;
+				for (int j = 0; j < reader.getAttributeCount(); j++) {
+					String prefix = reader.getAttributePrefix(j);
+					String local = reader.getAttributeLocalName(j);
+					if ("xmlns".equals(local) || "xmlns".equals(prefix)) continue;
+					if (null != prefix && prefix.length() > 0) return null;
+					if (attributeNames[i].equals(local)) {
+						present = (null == attributeValues[i] || attributeValues[i].equals(reader.getAttributeValue(j)));
+						break;
+					}
+				}
+				if (!present) return Boolean.FALSE;
+			}
+			return Boolean.TRUE;
+		}
+	}
+
+	/**
+	 * Recursive descent parser for the supported subset of XPath.
+	 * <p>
+	 * parse() returns null as soon as something unsupported is found.
+	 */
+	private static final class Parser {
+		private final String s;
+		private int pos;
+
+		Parser(String s) {
+			this.s = s;
+		}
+
+		Step[] parse() {
+			List<Step> steps = new ArrayList<Step>();
+			while (pos < s.length()) {
+				if (!s.startsWith("/", pos)) return null;
+				boolean descendant = s.startsWith("//", pos);
+				pos += (descendant ? 2 : 1);
+				Step step = step(descendant);
+				if (null == step) return null;
+				steps.add(step);
+			}
+			if (steps.isEmpty() || steps.size() > MAX_STEPS) return null;
+			return steps.toArray(new Step[steps.size()]);
+		}
+
+		private Step step(boolean descendant) {
+			String name;
+			if (s.startsWith("*", pos)) {
+				pos++;
+				name = null;
+			} else {
+				name = name();
+				if (null == name) return null;
+			}
+			List<String> names = new ArrayList<String>();
+			List<String> values = new ArrayList<String>();
+			while (s.startsWith("[", pos)) {
+				pos++;
+				skipSpaces();
+				if (!s.startsWith("@", pos)) return null;
+				pos++;
+				String attribute = name();
+				if (null == attribute) return null;
+				skipSpaces();
+				String value = null;
+				if (s.startsWith("=", pos)) {
+					pos++;
+					skipSpaces();
+					value = literal();
+					if (null == value) return null;
+					skipSpaces();
+				}
+				if (!s.startsWith("]", pos)) return null;
+				pos++;
+				names.add(attribute);
+				values.add(value);
+			}
+			return new Step(descendant, name, names, values);
+		}
+
+		private String name() {
+			int start = pos;
+			while (pos < s.length()) {
+				char c = s.charAt(pos);
+				boolean ok = Character.isLetter(c) || c == '_'
+						|| (pos > start && (Character.isDigit(c) || c == '-' || c == '.'));
+				if (!ok) break;
+				pos++;
+			}
+			if (pos == start) return null;
+			// functions, node tests and axes are not supported
+			if (s.startsWith("(", pos) || s.startsWith("::", pos) || s.startsWith(":", pos)) return null;
+			return s.substring(start, pos);
+		}
+
+		private String literal() {
+			if (pos >= s.length()) return null;
+			char quote = s.charAt(pos);
+			if (quote != '\'' && quote != '"') return null;
+			int end = s.indexOf(quote, pos + 1);
+			if (end < 0) return null;
+			String value = s.substring(pos + 1, end);
+			pos = end + 1;
+			return value;
+		}
+
+		private void skipSpaces() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+		}
+	}
+
+}
+
+// vim: set tabstop=4 softtabstop=4 shiftwidth=4 noexpandtab :
@@ -37,20 +37,66 @@ public class SubscriptionProperties {
      */
     protected Variable[] variables;
     private XPathExpressionHandler filter;
+    /**
+     * Whether an event may be merged with a build of the job which is
+     * already waiting in the queue.
+     */
+    private boolean foldEvents;
+    /**
+     * Seconds during which the matching events are collected into one build,
+     * 0 to build every event.
+     */
+    private int coalesceWindow;
+    /**
+     * How the variables of the collected events are merged, see
+     * EventCoalescer.MergePolicy.
+     */
+    private String mergePolicy;
+    /**
+     * Whether the builds of this subscription are dropped first when the
+     * Jenkins queue is too long.
+     */
+    private boolean lowPriority;
 
     /**
-     * Constructor for the properties of a subscription.
+     * Constructor for the properties of a subscription, with the defaults of
+     * the other settings.
      *
      * @param filter Filter to be applied to the XMPP messages received
      * @param node Node to which the subscription is done.
      * @param v Environment variables for that subscription.
      * @throws XPathExpressionException
      */
-    @DataBoundConstructor
     public SubscriptionProperties(String filter, String node, Variable[] v) throws XPathExpressionException {
+        this(filter, node, v, false, 0, null, false);
+    }
+
+    /**
+     * Constructor for the properties of a subscription, used by the job
+     * configuration page.
+     *
+     * @param filter Filter to be applied to the XMPP messages received
+     * @param node Node to which the subscription is done.
+     * @param v Environment variables for that subscription.
+     * @param foldEvents True if an event may be merged with a build which is
+     * already in the queue, false to build every event.
+     * @param coalesceWindow Seconds during which the matching events are
+     * collected into one build, 0 to build every event.
+     * @param mergePolicy How the variables of the collected events are
+     * merged: LAST, FIRST or LIST.
+     * @param lowPriority True if the builds are dropped first when the
+     * Jenkins queue is too long.
+     * @throws XPathExpressionException
+     */
+    @DataBoundConstructor
+    public SubscriptionProperties(String filter, String node, Variable[] v, boolean foldEvents, int coalesceWindow, String mergePolicy, boolean lowPriority) throws XPathExpressionException {
         this.node = node;
         this.filter = new XPathExpressionHandler(filter);
         this.variables = v;
+        this.foldEvents = foldEvents;
+        this.coalesceWindow = Math.max(0, coalesceWindow);
+        this.mergePolicy = mergePolicy;
+        this.lowPriority = lowPriority;
     }
 
     /**
@@ -71,6 +117,46 @@ public class SubscriptionProperties {
         return filter;
     }
 
+    /**
+     * Retrieves whether the events may be merged with a queued build.
+     */
+    public boolean isFoldEvents() {
+        return foldEvents;
+    }
+
+    /**
+     * Retrieves the coalescing window in seconds, 0 if disabled.
+     */
+    public int getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    /**
+     * Retrieves how the variables of the collected events are merged.
+     */
+    public String getMergePolicy() {
+        return getMergePolicyValue().name();
+    }
+
+    EventCoalescer.MergePolicy getMergePolicyValue() {
+        if (mergePolicy == null || mergePolicy.isEmpty()) {
+            return EventCoalescer.DEFAULT_POLICY;
+        }
+        try {
+            return EventCoalescer.MergePolicy.valueOf(mergePolicy);
+        } catch (IllegalArgumentException ex) {
+            return EventCoalescer.DEFAULT_POLICY;
+        }
+    }
+
+    /**
+     * Retrieves whether the builds are dropped first when the Jenkins queue
+     * is too long.
+     */
+    public boolean isLowPriority() {
+        return lowPriority;
+    }
+
     /**
      * Retrieves the environment variables the user input
      */
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smackx.pubsub.PubSubManager;
+import org.jivesoftware.smackx.pubsub.Subscription;
+
+/**
+ * The subscriptions of the connection to the pub/sub nodes.
+ *
+ * The subscriptions are recorded when the plugin subscribes and
+ * unsubscribes, so checking a node is a map lookup instead of retrieving all
+ * the subscriptions from the server. They are retrieved again, to find the
+ * changes made by others, at most once per reconciliation period.
+ */
+class SubscriptionRegistry {
+
+    /**
+     * Seconds between two reconciliations with the server.
+     */
+    static final int RECONCILE_PERIOD = 300;
+    /**
+     * Subscription id of the subscriptions without one.
+     */
+    private static final String NO_ID = "";
+
+    private PubSubManager psm;
+    private Connection con;
+    /**
+     * (Key: node name ; Value: subscription id).
+     */
+    private volatile ConcurrentMap<String, String> subscriptions = new ConcurrentHashMap<String, String>();
+    private volatile long reconciled;
+    private volatile boolean stale = true;
+    /**
+     * The changes recorded while the subscriptions are retrieved, applied to
+     * the retrieved subscriptions (Key: node name ; Value: subscription id,
+     * or null if unsubscribed), or null when they are not retrieved.
+     */
+    private Map<String, String> recent;
+    /**
+     * Incremented on every connection, the subscriptions retrieved through
+     * the previous connection are not kept.
+     */
+    private long connections;
+    /**
+     * Only one thread retrieves the subscriptions at a time.
+     */
+    private final Object reconciling = new Object();
+    private final long period;
+    private final AtomicLong reconciliations = new AtomicLong();
+
+    SubscriptionRegistry() {
+        this(RECONCILE_PERIOD);
+    }
+
+    /**
+     * @param period Seconds between two reconciliations with the server.
+     */
+    SubscriptionRegistry(int period) {
+        this.period = TimeUnit.SECONDS.toNanos(period);
+    }
+
+    /**
+     * Records the subscriptions of another connection, they are retrieved
+     * on the next check.
+     */
+    synchronized void connect(Connection con, PubSubManager psm) {
+        this.con = con;
+        this.psm = psm;
+        this.subscriptions = new ConcurrentHashMap<String, String>();
+        this.stale = true;
+        connections++;
+    }
+
+    /**
+     * Checks whether the connection is subscribed to a node.
+     *
+     * @throws XMPPException if the subscriptions had to be retrieved and it
+     * failed.
+     */
+    boolean isSubscribed(String node) throws XMPPException {
+        return getSubscriptionId(node) != null;
+    }
+
+    /**
+     * Returns the id of the subscription to a node.
+     *
+     * @return The id, an empty string if the subscription has no id, or null
+     * if the connection is not subscribed to the node.
+     * @throws XMPPException if the subscriptions had to be retrieved and it
+     * failed.
+     */
+    String getSubscriptionId(String node) throws XMPPException {
+        if (stale || System.nanoTime() - reconciled >= period) {
+            reconcile();
+        }
+        return subscriptions.get(node);
+    }
+
+    /**
+     * Records a subscription made by the plugin.
+     *
+     * @param subscription The subscription returned by the server, or null.
+     */
+    synchronized void subscribed(String node, Subscription subscription) {
+        String id = (subscription == null ? null : subscription.getId());
+        subscriptions.put(node, id == null ? NO_ID : id);
+        if (recent != null) {
+            recent.put(node, id == null ? NO_ID : id);
+        }
+    }
+
+    /**
+     * Records that the plugin unsubscribed from a node.
+     */
+    synchronized void unsubscribed(String node) {
+        subscriptions.remove(node);
+        if (recent != null) {
+            recent.put(node, null);
+        }
+    }
+
+    /**
+     * Retrieves the subscriptions of the connection from the server.
+     *
+     * The subscriptions recorded while they are retrieved are applied to the
+     * result, which may not have them.
+     *
+     * @throws XMPPException if it failed.
+     */
+    void reconcile() throws XMPPException {
+        synchronized (reconciling) {
+            long connection;
+            synchronized (this) {
+                connection = connections;
+                recent = new HashMap<String, String>();
+            }
+            Map<String, String> fetched = null;
+            try {
+                fetched = fetch();
+            } finally {
+                if (fetched == null) {
+                    synchronized (this) {
+                        recent = null;
+                    }
+                }
+            }
+            reconciliations.incrementAndGet();
+            synchronized (this) {
+                if (connection != connections) {
+                    // retrieved through the previous connection
+                    recent = null;
+                    return;
+                }
+                Map<String, String> merged = new HashMap<String, String>(fetched);
+                for (Map.Entry<String, String> change : recent.entrySet()) {
+                    if (change.getValue() == null) {
+                        merged.remove(change.getKey());
+                    } else {
+                        merged.put(change.getKey(), change.getValue());
+                    }
+                }
+                recent = null;
+                subscriptions = new ConcurrentHashMap<String, String>(merged);
+                reconciled = System.nanoTime();
+                stale = false;
+            }
+        }
+    }
+
+    /**
+     * Retrieves the subscriptions of the connection from the server.
+     *
+     * @return (Key: node name ; Value: subscription id).
+     */
+    Map<String, String> fetch() throws XMPPException {
+        PubSubManager m;
+        String jid;
+        synchronized (this) {
+            m = psm;
+            jid = con.getUser();
+        }
+        Map<String, String> fetched = new HashMap<String, String>();
+        for (Subscription sub : m.getSubscriptions()) {
+            if (sub.getJid().equals(jid)) {
+                fetched.put(sub.getNode(), sub.getId() == null ? NO_ID : sub.getId());
+            }
+        }
+        return fetched;
+    }
+
+    /**
+     * Returns the number of nodes the connection is subscribed to.
+     */
+    int getSize() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Returns the number of times the subscriptions were retrieved.
+     */
+    long getReconciliationCount() {
+        return reconciliations.get();
+    }
+}
@@ -87,4 +87,15 @@ public class Variable {
     public String resolve(String xml) throws XPathExpressionException {
         return envExpr.evaluate(xml);
     }
+
+    /**
+     * Returns the result of evaluating the expression against the provided
+     * event, reusing the event's parsed document.
+     *
+     * @param event
+     * @throws XPathExpressionException
+     */
+    public String resolve(XMPPEvent event) throws XPathExpressionException {
+        return envExpr.evaluate(event);
+    }
 }
@@ -0,0 +1,245 @@
+/*
+   Copyright 2012 Technicolor
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.technicolor.eloyente;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.*;
+import org.w3c.dom.*;
+import org.xml.sax.InputSource;
+
+/**
+ * A single XMPP event, as seen by the filters and the environment variables.
+ * <p>
+ * An event is received once, but it is evaluated by the filter and by the
+ * variables of every subscription to its node.  This class makes sure the
+ * XML message is parsed at most once: the DOM is built the first time an
+ * XPathExpressionHandler asks for it, and is then shared by all the
+ * expressions evaluated against the same event.
+ * <p>
+ * The message is handed to the parser as a character stream, there is
+ * no need to encode it to bytes first.
+ * <p>
+ * The results of evaluate() are remembered as well, so that when many
+ * jobs extract the same variable from the event, the expression is
+ * evaluated and serialized only once.
+ */
+
+public class XMPPEvent {
+
+	/**
+	 * DocumentBuilders are not thread-safe, each thread parses with its own.
+	 */
+	private static final ThreadLocal<DocumentBuilder> docBuilder = new ThreadLocal<DocumentBuilder>() {
+		@Override
+		protected DocumentBuilder initialValue() {
+			try {
+				DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
+				docBuilderFactory.setNamespaceAware(false);
+				return docBuilderFactory.newDocumentBuilder();
+			} catch (ParserConfigurationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final String id;
+	private final String xml;
+	private final boolean wellFormed;
+	private Document document;
+	private boolean parsed;
+	private List<String> topLevelNames;
+	private boolean scanned;
+	private final Map<CompiledExpression, String> evaluations = new HashMap<CompiledExpression, String>();
+
+	/**
+	 * Constructor for an event
+	 * <p>
+	 * @param xml The XML message received, can be null
+	 */
+	public XMPPEvent(String xml) {
+		this(xml, false);
+	}
+
+	/**
+	 * Constructor for an event which was already parsed by the XMPP library
+	 * <p>
+	 * @param xml The XML message received, can be null
+	 * @param wellFormed True if the message is known to be well-formed
+	 */
+	public XMPPEvent(String xml, boolean wellFormed) {
+		this(null, xml, wellFormed);
+	}
+
+	/**
+	 * Constructor for an item published on a node
+	 * <p>
+	 * @param id The id of the item, can be null
+	 * @param xml The XML message received, can be null
+	 * @param wellFormed True if the message is known to be well-formed
+	 */
+	public XMPPEvent(String id, String xml, boolean wellFormed) {
+		this.id = id;
+		this.xml = xml;
+		this.wellFormed = wellFormed;
+	}
+
+	/**
+	 * Function to retrieve the id of the published item.
+	 * <p>
+	 * @return The id given by the publisher or the server, or null
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Function to copy the event for another thread.
+	 * <p>
+	 * The DOM document of an event cannot be read by several threads at
+	 * the same time, the copy is parsed again when it is needed.
+	 *
+	 * @return A new event with the same id and XML message
+	 */
+	XMPPEvent copy() {
+		return new XMPPEvent(id, xml, wellFormed);
+	}
+
+	/**
+	 * Function to retrieve the XML message of the event.
+	 * <p>
+	 * @return The XML message as it was received
+	 */
+	public String getXML() {
+		return xml;
+	}
+
+	/**
+	 * Function to check whether the message is known to be well-formed.
+	 * <p>
+	 * This allows a streaming filter to stop reading the message at the
+	 * first match, without having to check the rest of it.
+	 *
+	 * @return True if the message is known to be well-formed
+	 */
+	public boolean isWellFormed() {
+		return wellFormed;
+	}
+
+	/**
+	 * Function to check whether the message was parsed already.
+	 * <p>
+	 * @return True if getDocument() was called before
+	 */
+	public synchronized boolean isParsed() {
+		return parsed;
+	}
+
+	/**
+	 * Function to retrieve the parsed XML message.
+	 * <p>
+	 * The message is parsed on the first call only, later calls return
+	 * the same document.
+	 *
+	 * @return The DOM of the message, or null if it is not well-formed
+	 */
+	public synchronized Document getDocument() {
+		if (!parsed) {
+			document = parse(xml);
+			parsed = true;
+		}
+		return document;
+	}
+
+	/**
+	 * Function to retrieve the names of the top level elements.
+	 * <p>
+	 * If the message was not parsed yet, the names are read from the
+	 * message without building a DOM.
+	 *
+	 * @return The name of the root element followed by the names of its
+	 * child elements, or null if they can not be determined
+	 */
+	public synchronized List<String> getTopLevelNames() {
+		if (!scanned) {
+			if (parsed) {
+				topLevelNames = getTopLevelNames(document);
+			} else {
+				topLevelNames = StreamingXPathFilter.getTopLevelNames(xml);
+			}
+			scanned = true;
+		}
+		return topLevelNames;
+	}
+
+	/**
+	 * Function to retrieve the remembered result of an expression.
+	 * <p>
+	 * @param expression The compiled expression
+	 * @return The result of evaluating the expression against this event,
+	 * or null if it was not evaluated yet
+	 */
+	synchronized String getEvaluation(CompiledExpression expression) {
+		return evaluations.get(expression);
+	}
+
+	/**
+	 * Function to remember the result of an expression.
+	 * <p>
+	 * @param expression The compiled expression
+	 * @param result The result of evaluating the expression against this event
+	 */
+	synchronized void putEvaluation(CompiledExpression expression, String result) {
+		evaluations.put(expression, result);
+	}
+
+	private static List<String> getTopLevelNames(Document doc) {
+		if (null == doc) return null;
+		Element root = doc.getDocumentElement();
+		List<String> names = new ArrayList<String>();
+		names.add(root.getNodeName());
+		for (Node n = root.getFirstChild(); null != n; n = n.getNextSibling()) {
+			if (Node.ELEMENT_NODE == n.getNodeType()) {
+				names.add(n.getNodeName());
+			}
+		}
+		for (String name : names) {
+			if (name.indexOf(':') >= 0) return null;
+		}
+		return names;
+	}
+
+	private static Document parse(String xml) {
+		if (null == xml) return null;
+		try {
+			return docBuilder.get().parse(new InputSource(new StringReader(xml)));
+		} catch (Exception e) {
+			/**
+			* Exceptions are due to malformed XML messages, which can be
+			* received from anywhere.  Since we cannot throw the exception to the
+			* sender of the XML message, silently discard it.
+			*/
+			return null;
+		}
+	}
+
+}
+
+// vim: set tabstop=4 softtabstop=4 shiftwidth=4 noexpandtab :
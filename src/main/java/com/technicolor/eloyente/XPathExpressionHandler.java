@@ -16,9 +16,6 @@
 
 package com.technicolor.eloyente;
 
-import java.io.*;
-import java.nio.charset.Charset;
-import javax.xml.parsers.*;
 import javax.xml.xpath.*;
 import org.w3c.dom.*;
 import org.w3c.dom.bootstrap.DOMImplementationRegistry;
@@ -34,23 +31,44 @@ import org.w3c.dom.ls.*;
  * other hand will be used to extract data from the XMPP event, and to
  * store it in environment variables, such that the Jenkins job which
  * is triggered by the event can use the data.
+ * <p>
+ * Both functions also accept an XMPPEvent, so that the filter and all
+ * the variables of a subscription can share a single parse of the event.
+ * Filters which are simple location paths are tested with a
+ * StreamingXPathFilter, without parsing the event at all.
+ * <p>
+ * A handler can be evaluated from several threads at the same time: the
+ * compiled expression keeps a copy per thread of the non thread-safe
+ * JAXP objects, and changing the expression replaces it atomically.
+ * Handlers with the same expression share the same compiled expression.
  *
  * @author Frank Vanderhallen
  */
 
 public class XPathExpressionHandler {
 
-	private String expression;
-	private transient XPathExpression expressionCompiled;
-
-	private transient DOMImplementationRegistry domImplementationRegistry;
-	private transient DocumentBuilderFactory docBuilderFactory;
-	private transient DocumentBuilder docBuilder;
-	private transient Document xmldoc;
-	private transient DOMImplementationLS domImplementation;
+	private volatile String expression;
+	private transient volatile CompiledExpression compiled;
 
+	private static final DOMImplementationLS domImplementation;
 	private static final String EMPTY_STR = "";
 
+	static {
+		DOMImplementationLS ls = null;
+		try {
+			ls = (DOMImplementationLS)DOMImplementationRegistry.newInstance().getDOMImplementation("LS");
+		} catch (Exception e) {
+			/**
+			* If an exception is thrown, there is a problem with the XML parsing
+			* environment on the machine on which the code is executed.
+			* Inform the user about the problem, but don't throw the exception
+			* to the user.
+			*/
+			e.printStackTrace();
+		}
+		domImplementation = ls;
+	}
+
 	/**
 	 * Default constructor
 	 * <p>
@@ -71,23 +89,9 @@ public class XPathExpressionHandler {
 
 	private void init(String expression) throws XPathExpressionException {
 		try {
-			domImplementationRegistry = DOMImplementationRegistry.newInstance();
-			domImplementation = (DOMImplementationLS)domImplementationRegistry.getDOMImplementation("LS");
-			docBuilderFactory = DocumentBuilderFactory.newInstance();
-			docBuilderFactory.setNamespaceAware(false);
-			docBuilder = docBuilderFactory.newDocumentBuilder();
-			xmldoc = docBuilder.newDocument();
 			setExpression(expression);
 		} catch (XPathExpressionException e) {
 			this.expression ="";
-		} catch (Exception e) {
-			/**
-			* If an exception is thrown, there is a problem with the XML parsing
-			* environment on the machine on which the code is executed.
-			* Inform the user about the problem, but don't throw the exception
-			* to the user.
-			*/
-			e.printStackTrace();
 		}
 	}
 
@@ -107,14 +111,13 @@ public class XPathExpressionHandler {
 	 * <p>
 	 * @param expression An expression in XPath notation.
 	 */
-	public void setExpression(String expression) throws XPathExpressionException {
+	public synchronized void setExpression(String expression) throws XPathExpressionException {
 		String newExpr = (null == expression ? EMPTY_STR : expression);
 		if (!newExpr.equals(this.expression)) {
 			if (!EMPTY_STR.equals(newExpr)) {
-				XPath xpath = XPathFactory.newInstance().newXPath();
-				this.expressionCompiled = xpath.compile(newExpr);
+				this.compiled = CompiledExpression.intern(newExpr);
 			} else {
-				this.expressionCompiled = null;
+				this.compiled = null;
 			}
 			this.expression = newExpr;
 		}
@@ -129,6 +132,15 @@ public class XPathExpressionHandler {
 		return expression;
 	}
 
+	/**
+	 * Function to retrieve the compiled expression.
+	 * <p>
+	 * @return The shared compiled expression, or null if the expression is empty
+	 */
+	CompiledExpression getCompiledExpression() {
+		return compiled;
+	}
+
 	/**
 	 * Evaluate the expression.
 	 * <p>
@@ -139,11 +151,30 @@ public class XPathExpressionHandler {
 	 * @return The result of evaluating the expression
 	 */
 	public String evaluate(String xml) throws XPathExpressionException {
-		if (null == expressionCompiled) return (null != xml ? xml : EMPTY_STR);
-		Document doc = getDOM(xml);
-		if (null == doc) return EMPTY_STR;
-		NodeList n = (NodeList)expressionCompiled.evaluate(doc, XPathConstants.NODESET);
-		return getXML(n);
+		return evaluate(new XMPPEvent(xml));
+	}
+
+	/**
+	 * Evaluate the expression against an event.
+	 * <p>
+	 * Same as evaluate(String), but the event is only parsed if it
+	 * was not parsed before, and the result is shared with all the
+	 * handlers of the same expression evaluated against the event.
+	 *
+	 * @param event The XMPP event to evaluate
+	 * @return The result of evaluating the expression
+	 */
+	public String evaluate(XMPPEvent event) throws XPathExpressionException {
+		String xml = event.getXML();
+		CompiledExpression c = compiled;
+		if (null == c) return (null != xml ? xml : EMPTY_STR);
+		String result = event.getEvaluation(c);
+		if (null == result) {
+			Document doc = event.getDocument();
+			result = (null == doc ? EMPTY_STR : getXML(c.evaluate(doc)));
+			event.putEvaluation(c, result);
+		}
+		return result;
 	}
 
 	/**
@@ -156,27 +187,33 @@ public class XPathExpressionHandler {
 	 * @return True if the result is not empty
 	 */
 	public boolean test(String xml) throws XPathExpressionException {
-		if (null == expressionCompiled) return (null != xml && !xml.isEmpty());
-		Document doc = getDOM(xml);
-		if (null == doc) return false;
-		// a node-set is true if and only if it is not empty
-		// (source: http://www.w3.org/TR/xpath/#function-boolean)
-		NodeList n = (NodeList)expressionCompiled.evaluate(doc, XPathConstants.NODESET);
-		return (n.getLength() > 0);
+		return test(new XMPPEvent(xml));
 	}
 
-	private Document getDOM(String xml) {
-		try {
-			InputStream is = new ByteArrayInputStream(xml.getBytes(Charset.forName("UTF-16")));
-			return docBuilder.parse(is);
-		} catch (Exception e) {
-			/**
-			* Exceptions are due to malformed XML messages, which can be
-			* received from anywhere.  Since we cannot throw the exception to the
-			* sender of the XML message, silently discard it.
-			*/
-			return null;
+	/**
+	 * Test the expression against an event.
+	 * <p>
+	 * Same as test(String), but the event is only parsed if it
+	 * was not parsed before.  Unless another expression needed the
+	 * DOM already, simple filters are decided by streaming the event.
+	 *
+	 * @param event The XMPP event to evaluate
+	 * @return True if the result is not empty
+	 */
+	public boolean test(XMPPEvent event) throws XPathExpressionException {
+		String xml = event.getXML();
+		CompiledExpression c = compiled;
+		if (null == c) return (null != xml && !xml.isEmpty());
+		StreamingXPathFilter streamingFilter = c.getStreamingFilter();
+		if (null != streamingFilter && !event.isParsed()) {
+			Boolean result = streamingFilter.test(xml, event.isWellFormed());
+			if (null != result) return result.booleanValue();
 		}
+		Document doc = event.getDocument();
+		if (null == doc) return false;
+		// a node-set is true if and only if it is not empty
+		// (source: http://www.w3.org/TR/xpath/#function-boolean)
+		return (c.evaluate(doc).getLength() > 0);
 	}
 
 	private String getXML(NodeList list) {
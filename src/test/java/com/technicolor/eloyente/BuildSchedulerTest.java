@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class BuildSchedulerTest {
+
+    private static BuildScheduler.Attempt attempt(String project, final int failures,
+            final AtomicInteger tries, final CountDownLatch done) {
+        return new BuildScheduler.Attempt(project) {
+            @Override
+            boolean scheduleBuild() {
+                boolean scheduled = tries.incrementAndGet() > failures;
+                if (scheduled || getRetries() == BuildScheduler.RETRIES) {
+                    done.countDown();
+                }
+                return scheduled;
+            }
+        };
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        BuildScheduler scheduler = new BuildScheduler(10);
+        AtomicInteger tries = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.retryLater(attempt("p", 2, tries, done));
+        assertEquals(1, scheduler.getPendingCount("p"));
+        assertEquals(0, scheduler.getPendingCount("q"));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, tries.get());
+        for (int i = 0; i < 100 && scheduler.getSucceededCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, scheduler.getSucceededCount());
+        assertEquals(0, scheduler.getPending().size());
+    }
+
+    @Test
+    public void testGiveUp() throws Exception {
+        BuildScheduler scheduler = new BuildScheduler(1);
+        AtomicInteger tries = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.retryLater(attempt("p", 100, tries, done));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(BuildScheduler.RETRIES, tries.get());
+        for (int i = 0; i < 100 && scheduler.getFailedCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, scheduler.getFailedCount());
+        assertEquals(0, scheduler.getPending().size());
+    }
+
+    @Test
+    public void testManyWaiting() throws Exception {
+        BuildScheduler scheduler = new BuildScheduler(50);
+        AtomicInteger tries = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            scheduler.retryLater(attempt("p" + (i % 10), 0, tries, done));
+        }
+        assertEquals(10, scheduler.getPendingCount("p3"));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(100, tries.get());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ConnectionKeeperTest {
+
+    /**
+     * A keeper of a server which accepts the connection after some failures.
+     */
+    private static class Server extends ConnectionKeeper {
+
+        final AtomicInteger failures;
+        final CountDownLatch connected = new CountDownLatch(1);
+        volatile boolean rejected;
+
+        Server(int failures) {
+            super(10, 40);
+            this.failures = new AtomicInteger(failures);
+        }
+
+        Server(ManualExecutor executor, int failures) {
+            super(executor, 10, 40);
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        State connect() {
+            if (rejected) {
+                return State.FAILED;
+            }
+            return failures.getAndDecrement() <= 0 ? State.CONNECTED : State.WAITING;
+        }
+
+        @Override
+        void connected() {
+            connected.countDown();
+        }
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        Server keeper = new Server(3);
+        assertEquals(ConnectionKeeper.State.IDLE, keeper.getState());
+        keeper.start();
+        assertTrue(keeper.connected.await(5, TimeUnit.SECONDS));
+        assertEquals(ConnectionKeeper.State.CONNECTED, keeper.getState());
+        assertEquals(4, keeper.getAttemptCount());
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        Server keeper = new Server(executor, Integer.MAX_VALUE);
+        keeper.start();
+        assertEquals(1, executor.runAll());
+        assertEquals(ConnectionKeeper.State.WAITING, keeper.getState());
+        assertEquals(1, executor.runAll());
+        assertEquals(2, keeper.getAttemptCount());
+        keeper.stop();
+        // the retry scheduled before the stop does nothing
+        assertEquals(1, executor.runAll());
+        assertEquals(2, keeper.getAttemptCount());
+        assertEquals(0, executor.getWaitingCount());
+        assertEquals(ConnectionKeeper.State.IDLE, keeper.getState());
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        Server keeper = new Server(executor, 0);
+        keeper.rejected = true;
+        keeper.start();
+        executor.runAll();
+        // a configuration error is not retried
+        assertEquals(ConnectionKeeper.State.FAILED, keeper.getState());
+        assertEquals(1, keeper.getAttemptCount());
+        assertEquals(0, executor.getWaitingCount());
+        // until the keeper is started again
+        keeper.rejected = false;
+        keeper.start();
+        executor.runAll();
+        assertEquals(ConnectionKeeper.State.CONNECTED, keeper.getState());
+        assertEquals(0, keeper.connected.getCount());
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        Server keeper = new Server(Integer.MAX_VALUE);
+        keeper.start();
+        keeper.failures.set(0);
+        keeper.start();
+        assertTrue(keeper.connected.await(5, TimeUnit.SECONDS));
+        assertEquals(ConnectionKeeper.State.CONNECTED, keeper.getState());
+    }
+
+    @Test
+    public void testSocketFactory() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+        Socket socket = new ConnectionKeeper.TimeoutSocketFactory(1000).createSocket("localhost", server.getLocalPort());
+        assertTrue(socket.isConnected());
+        socket.close();
+        server.close();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the execution modes of the EventDispatcher.
+ *
+ * Every event blocks for a while, as the round trips to the XMPP server and
+ * the waits for the build queue do. Run it with
+ * java -cp target/classes:target/test-classes com.technicolor.eloyente.DispatcherBenchmark [events] [nodes] [millis]
+ */
+public class DispatcherBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 2;
+        System.out.println("Java " + System.getProperty("java.version") + ", " + events + " events on " + nodes
+                + " nodes, blocking " + millis + " ms each");
+        for (EventDispatcher.ExecutionMode mode : EventDispatcher.ExecutionMode.values()) {
+            // once to warm up, once to measure
+            run(mode, events / 10, nodes, millis);
+            run(mode, events, nodes, millis);
+        }
+    }
+
+    private static void run(EventDispatcher.ExecutionMode mode, int events, int nodes, final long millis) throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher(EventDispatcher.DEFAULT_WORKERS, events,
+                EventDispatcher.OverflowPolicy.BLOCK, EventDispatcher.Ordering.NODE, mode);
+        final CountDownLatch done = new CountDownLatch(events);
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            dispatcher.dispatch("node" + (i % nodes), new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(millis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(mode + (dispatcher.isVirtual() || mode == EventDispatcher.ExecutionMode.PLATFORM ? "" : " (not available)")
+                + ": " + events + " events in " + elapsed + " ms, " + (events * 1000L / Math.max(1, elapsed)) + " events/s");
+        dispatcher.shutdown();
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.technicolor.eloyente;
 import hudson.EnvVars;
+import java.util.Arrays;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
@@ -44,4 +45,18 @@ public class ElOyenteTriggerCauseTest {
         //assertEquals("El Oyente received an XMPP event",ej.getShortDescription());
     }
     
+    @Test
+    public void testMerged() throws Exception
+    {
+        EnvVars env = new EnvVars();
+        ElOyenteTriggerCause ej= ElOyenteTriggerCause.forEvents(Arrays.asList("<a/>", "<b/>"), "/*", env);
+        assertEquals(Arrays.asList("<a/>", "<b/>"), ej.getEvents());
+        assertTrue(ej.getShortDescription().contains("received 2 XMPP events"));
+        assertTrue(ej.getShortDescription().contains("&lt;b/&gt;"));
+
+        ej= ElOyenteTriggerCause.forEvents(Arrays.asList("<a/>"), "/*", env);
+        assertEquals(Arrays.asList("<a/>"), ej.getEvents());
+        assertTrue(ej.getShortDescription().contains("received an XMPP event"));
+    }
+    
 }
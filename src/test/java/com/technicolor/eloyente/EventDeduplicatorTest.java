@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class EventDeduplicatorTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testDuplicates() throws Exception {
+        EventDeduplicator dedup = new EventDeduplicator(10, 60);
+        assertFalse(dedup.isDuplicate("node", "1", 0));
+        assertTrue(dedup.isDuplicate("node", "1", SECOND));
+        assertFalse(dedup.isDuplicate("other", "1", SECOND));
+        assertFalse(dedup.isDuplicate("node", null, 0));
+        assertFalse(dedup.isDuplicate("node", null, 0));
+        assertEquals(3, dedup.getLookupCount());
+        assertEquals(1, dedup.getHitCount());
+        assertEquals(1 / 3.0, dedup.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        EventDeduplicator dedup = new EventDeduplicator(10, 60);
+        assertFalse(dedup.isDuplicate("node", "1", 0));
+        assertTrue(dedup.isDuplicate("node", "1", 59 * SECOND));
+        assertFalse(dedup.isDuplicate("node", "1", 60 * SECOND));
+        assertTrue(dedup.isDuplicate("node", "1", 61 * SECOND));
+    }
+
+    @Test
+    public void testLeastRecentlySeenForgotten() throws Exception {
+        EventDeduplicator dedup = new EventDeduplicator(3, 60);
+        assertFalse(dedup.isDuplicate("node", "1", 0));
+        assertFalse(dedup.isDuplicate("node", "2", 0));
+        assertFalse(dedup.isDuplicate("node", "3", 0));
+        assertTrue(dedup.isDuplicate("node", "1", 0));
+        assertFalse(dedup.isDuplicate("node", "4", 0));
+        assertEquals(3, dedup.getSize());
+        assertTrue(dedup.isDuplicate("node", "1", 0));
+        assertFalse(dedup.isDuplicate("node", "2", 0));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        EventDeduplicator dedup = new EventDeduplicator(0, 60);
+        assertFalse(dedup.isDuplicate("node", "1", 0));
+        assertFalse(dedup.isDuplicate("node", "1", 0));
+        assertEquals(0, dedup.getLookupCount());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class EventDispatcherTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> done = new CopyOnWriteArrayList<String>();
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                done.add(name);
+            }
+        };
+    }
+
+    private void fill(EventDispatcher dispatcher) throws Exception {
+        dispatcher.dispatch(task("running"));
+        while (dispatcher.getActiveCount() == 0) {
+            Thread.sleep(10);
+        }
+        dispatcher.dispatch(task("queued"));
+    }
+
+    private void drain(EventDispatcher dispatcher) throws Exception {
+        release.countDown();
+        while (dispatcher.getQueueSize() > 0 || dispatcher.getActiveCount() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testDiscardNewest() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher(1, 1, EventDispatcher.OverflowPolicy.DISCARD_NEWEST);
+        fill(dispatcher);
+        dispatcher.dispatch(task("new"));
+        drain(dispatcher);
+        assertEquals(Arrays.asList("running", "queued"), done);
+        assertEquals(3, dispatcher.getDispatchedCount());
+        assertEquals(1, dispatcher.getDiscardedCount());
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testDiscardOldest() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher(1, 1, EventDispatcher.OverflowPolicy.DISCARD_OLDEST);
+        fill(dispatcher);
+        dispatcher.dispatch(task("new"));
+        drain(dispatcher);
+        assertEquals(Arrays.asList("running", "new"), done);
+        assertEquals(1, dispatcher.getDiscardedCount());
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        final EventDispatcher dispatcher = new EventDispatcher(1, 1, EventDispatcher.OverflowPolicy.BLOCK);
+        fill(dispatcher);
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                dispatcher.dispatch(task("new"));
+                dispatched.countDown();
+            }
+        }.start();
+        assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS));
+        drain(dispatcher);
+        assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+        drain(dispatcher);
+        assertEquals(Arrays.asList("running", "queued", "new"), done);
+        assertEquals(0, dispatcher.getDiscardedCount());
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testConfigure() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher(1, 1, EventDispatcher.OverflowPolicy.DISCARD_NEWEST);
+        fill(dispatcher);
+        dispatcher.configure(2, 10, EventDispatcher.OverflowPolicy.DISCARD_NEWEST);
+        dispatcher.dispatch(task("new"));
+        assertEquals(2, dispatcher.getWorkers());
+        assertEquals(10, dispatcher.getCapacity());
+        release.countDown();
+        for (int i = 0; i < 500 && done.size() < 3; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, done.size());
+        assertEquals(0, dispatcher.getDiscardedCount());
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testKeys() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher(4, 100, EventDispatcher.OverflowPolicy.BLOCK);
+        final List<String> node1 = new CopyOnWriteArrayList<String>();
+        final CountDownLatch node2 = new CountDownLatch(1);
+        for (int i = 0; i < 20; i++) {
+            final String event = "event" + i;
+            dispatcher.dispatch("node1", new Runnable() {
+                public void run() {
+                    try {
+                        // node1 waits for node2, which runs in parallel
+                        node2.await();
+                        Thread.sleep(event.length() % 2);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    node1.add(event);
+                }
+            });
+        }
+        dispatcher.dispatch("node2", new Runnable() {
+            public void run() {
+                node2.countDown();
+            }
+        });
+        for (int i = 0; i < 500 && node1.size() < 20; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(20, node1.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("event" + i, node1.get(i));
+        }
+        assertEquals(0, dispatcher.getKeyCount());
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testFollowUp() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher(1, 1, EventDispatcher.OverflowPolicy.DISCARD_NEWEST);
+        fill(dispatcher);
+        dispatcher.dispatchFollowUp("job", task("followup"));
+        assertEquals(1, dispatcher.getQueueSize());
+        drain(dispatcher);
+        for (int i = 0; i < 500 && done.size() < 3; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("running", "queued", "followup"), done);
+        assertEquals(0, dispatcher.getDiscardedCount());
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testExecutionMode() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher(1, 10, EventDispatcher.OverflowPolicy.BLOCK,
+                EventDispatcher.Ordering.NODE, EventDispatcher.ExecutionMode.VIRTUAL);
+        // falls back to the worker threads on runtimes without virtual threads
+        assertEquals(EventDispatcher.newVirtualThreadExecutor() != null, dispatcher.isVirtual());
+        dispatcher.dispatch("node", task("virtual"));
+        dispatcher.configure(1, 10, EventDispatcher.OverflowPolicy.BLOCK, EventDispatcher.Ordering.NODE,
+                EventDispatcher.ExecutionMode.PLATFORM);
+        assertFalse(dispatcher.isVirtual());
+        dispatcher.dispatch("node", task("platform"));
+        release.countDown();
+        for (int i = 0; i < 500 && done.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("virtual", "platform"), done);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher(1, 10, EventDispatcher.OverflowPolicy.BLOCK);
+        dispatcher.dispatch("node", task("running"));
+        while (dispatcher.getActiveCount() == 0) {
+            Thread.sleep(10);
+        }
+        dispatcher.dispatch("node", task("queued"));
+        dispatcher.shutdown();
+        dispatcher.dispatch("other", task("rejected"));
+        assertEquals(1, dispatcher.getQueueSize());
+        release.countDown();
+        for (int i = 0; i < 500 && dispatcher.getKeyCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("running"), done);
+        assertEquals(0, dispatcher.getKeyCount());
+        assertEquals(0, dispatcher.getQueueSize());
+        assertEquals(2, dispatcher.getDiscardedCount());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class FilterIndexTest {
+
+    private static ElOyente trigger(String node, String... filters) throws Exception {
+        SubscriptionProperties[] subs = new SubscriptionProperties[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            subs[i] = new SubscriptionProperties(filters[i], node, null);
+        }
+        return new ElOyente(subs);
+    }
+
+    private static List<String> filters(List<FilterIndex.Entry> entries) {
+        List<String> filters = new ArrayList<String>();
+        for (FilterIndex.Entry entry : entries) {
+            filters.add(entry.subscription.getFilter());
+        }
+        return filters;
+    }
+
+    @Test
+    public void testCandidates() throws Exception {
+        ElOyente t1 = trigger("node", "/item/push[@repo='a']", "/item/build", "//push");
+        ElOyente t2 = trigger("node", "/item", "/other/push", "", "/item/*/x");
+        ElOyente t3 = trigger("other", "/item/push");
+        FilterIndex index = new FilterIndex("node", Arrays.asList(t1, t2, t3));
+
+        assertEquals(7, index.getEntries().size());
+        XMPPEvent push = new XMPPEvent("<item id='1'><push repo='a'/></item>", true);
+        assertEquals(Arrays.asList("/item/push[@repo='a']", "//push", "/item", ""),
+                filters(index.getMatches(push)));
+        XMPPEvent build = new XMPPEvent("<item id='2'><build/><build/></item>", true);
+        assertEquals(Arrays.asList("/item/build", "/item", ""),
+                filters(index.getMatches(build)));
+        XMPPEvent malformed = new XMPPEvent("<item><push></item>");
+        assertEquals(Arrays.asList(""), filters(index.getMatches(malformed)));
+    }
+
+    @Test
+    public void testEqualityTable() throws Exception {
+        List<ElOyente> triggers = new ArrayList<ElOyente>();
+        for (int i = 0; i < 50; i++) {
+            triggers.add(trigger("node", "/item/push[@repo='r" + i + "']", "/item/push[@repo='r" + i + "'][@tag]"));
+        }
+        triggers.add(trigger("node", "/item/push[@branch]/commit[@id=\"r3\"]"));
+        FilterIndex index = new FilterIndex("node", triggers);
+
+        XMPPEvent event = new XMPPEvent("<item id='1'><push repo='r3'/><push repo='r7' tag='v1'/></item>", true);
+        assertEquals(Arrays.asList("/item/push[@repo='r3']", "/item/push[@repo='r7']", "/item/push[@repo='r7'][@tag]"),
+                filters(index.getMatches(event)));
+
+        // same result when the DOM is used instead of streaming
+        event.getDocument();
+        assertEquals(Arrays.asList("/item/push[@repo='r3']", "/item/push[@repo='r7']", "/item/push[@repo='r7'][@tag]"),
+                filters(index.getMatches(event)));
+
+        XMPPEvent commit = new XMPPEvent("<item><push branch='b'><commit id='r3'/></push></item>");
+        assertEquals(Arrays.asList("/item/push[@branch]/commit[@id=\"r3\"]"), filters(index.getMatches(commit)));
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        String[] filters = new String[40];
+        for (int i = 0; i < filters.length; i++) {
+            // not streamable, every filter needs the DOM of the event
+            filters[i] = (i % 2 == 0) ? "//push[@repo='a' or @n='" + i + "']" : "//push[@repo='b' or @n='" + i + "']";
+        }
+        FilterIndex index = new FilterIndex("node", Arrays.asList(trigger("node", filters)));
+        XMPPEvent push = new XMPPEvent("<item id='1'><push repo='a' n='3'/></item>", true);
+        ParallelEvaluator parallel = new ParallelEvaluator(3, 10);
+        List<FilterIndex.Entry> matches = index.getMatches(push, parallel);
+        assertEquals(21, matches.size());
+        assertEquals(filters(index.getMatches(new XMPPEvent(push.getXML(), true))), filters(matches));
+        assertEquals(1, parallel.getSplitCount());
+        parallel.shutdown();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import hudson.EnvVars;
+import hudson.model.Action;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ItemEventCoordinatorTest {
+
+    @Test
+    public void testBatch() throws Exception {
+        Variable[] vars = {new Variable("REPO", "//push/@repo")};
+        SubscriptionProperties push = new SubscriptionProperties("/item/push", "node", vars);
+        SubscriptionProperties tag = new SubscriptionProperties("/item/tag", "node", null, true, 0, null, false);
+        ElOyente trigger = new ElOyente(new SubscriptionProperties[]{push, tag});
+        ItemEventCoordinator coordinator = new ItemEventCoordinator("node", null);
+        coordinator.addTrigger(trigger);
+
+        List<XMPPEvent> events = Arrays.asList(
+                new XMPPEvent("1", "<item id='1'><push repo='a'/></item>", true),
+                new XMPPEvent("2", "<item id='2'><other/></item>", true),
+                new XMPPEvent("3", "<item id='3'><tag/><push repo='b'/></item>", true));
+        List<ItemEventCoordinator.Build> builds = coordinator.evaluate(events);
+        assertEquals(3, builds.size());
+        assertEquals("/item/push", builds.get(0).expression);
+        assertEquals("a", builds.get(0).vars.get("REPO"));
+        assertEquals("/item/push", builds.get(1).expression);
+        assertEquals("b", builds.get(1).vars.get("REPO"));
+        assertEquals(Arrays.asList(events.get(2).getXML()), builds.get(1).events);
+        assertEquals("/item/tag", builds.get(2).expression);
+        assertSame(trigger, builds.get(2).trigger);
+
+        // every event has its own identity, unless the subscription merges them
+        assertEquals("node", builds.get(0).action.getNode());
+        assertEquals("1", builds.get(0).action.getItemId());
+        assertEquals("3", builds.get(1).action.getItemId());
+        assertTrue(builds.get(1).action.shouldSchedule(new ArrayList<Action>()));
+        assertNull(builds.get(2).action);
+    }
+
+    @Test
+    public void testTriggers() throws Exception {
+        ElOyente t1 = new ElOyente(new SubscriptionProperties[]{new SubscriptionProperties("/item", "node", null)});
+        ElOyente t2 = new ElOyente(new SubscriptionProperties[]{new SubscriptionProperties("/other", "node", null)});
+        ItemEventCoordinator coordinator = new ItemEventCoordinator("node", null);
+        assertTrue(coordinator.addTrigger(t1));
+        assertTrue(coordinator.addTrigger(t1));
+        assertTrue(coordinator.addTrigger(t2));
+        assertEquals(Arrays.asList(t1, t2), new ArrayList<ElOyente>(coordinator.getTriggers()));
+
+        List<XMPPEvent> events = Arrays.asList(new XMPPEvent("<item/>", true));
+        assertEquals(1, coordinator.evaluate(events).size());
+        assertFalse(coordinator.removeTrigger(t1));
+        assertEquals(0, coordinator.evaluate(events).size());
+
+        assertTrue(coordinator.removeTrigger(t2));
+        assertTrue(coordinator.getTriggers().isEmpty());
+        assertFalse(coordinator.addTrigger(t1));
+    }
+
+    @Test
+    public void testReplaceTrigger() throws Exception {
+        ElOyente t1 = new ElOyente(new SubscriptionProperties[]{new SubscriptionProperties("/item", "node", null)});
+        ElOyente t2 = new ElOyente(new SubscriptionProperties[]{new SubscriptionProperties("/other", "node", null)});
+        ElOyente saved = new ElOyente(new SubscriptionProperties[]{new SubscriptionProperties("/item", "node", null)});
+        ItemEventCoordinator coordinator = new ItemEventCoordinator("node", null);
+        coordinator.addTrigger(t1);
+        coordinator.addTrigger(t2);
+        assertTrue(coordinator.replaceTrigger(t1, saved));
+        assertEquals(Arrays.asList(t2, saved), new ArrayList<ElOyente>(coordinator.getTriggers()));
+        // the stopped trigger is not in the coordinator anymore
+        assertFalse(coordinator.removeTrigger(t1));
+        List<ItemEventCoordinator.Build> builds = coordinator.evaluate(Arrays.asList(new XMPPEvent("<item/>", true)));
+        assertEquals(1, builds.size());
+        assertSame(saved, builds.get(0).trigger);
+        assertFalse(saved.hold(builds.get(0)));
+
+        assertFalse(coordinator.removeTrigger(t2));
+        assertTrue(coordinator.removeTrigger(saved));
+        assertFalse(coordinator.replaceTrigger(t1, t2));
+    }
+
+    @Test
+    public void testRemoveOtherTrigger() throws Exception {
+        ElOyente t1 = new ElOyente(new SubscriptionProperties[]{new SubscriptionProperties("/item", "node", null)});
+        ElOyente t2 = new ElOyente(new SubscriptionProperties[]{new SubscriptionProperties("/other", "node", null)});
+        ItemEventCoordinator coordinator = new ItemEventCoordinator("node", null);
+        // a new coordinator is not closed by a trigger which is not in it
+        assertFalse(coordinator.removeTrigger(t2));
+        assertTrue(coordinator.addTrigger(t1));
+        assertFalse(coordinator.removeTrigger(t2));
+        assertEquals(Arrays.asList(t1), new ArrayList<ElOyente>(coordinator.getTriggers()));
+        assertTrue(coordinator.addTrigger(t2));
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        SubscriptionProperties subs = new SubscriptionProperties("/item", "node", null, false, 10, "LIST", false);
+        List<ItemEventCoordinator.Build> builds = new ArrayList<ItemEventCoordinator.Build>();
+        for (int i = 1; i <= 3; i++) {
+            EnvVars vars = new EnvVars();
+            vars.put("ID", "" + i);
+            if (i == 2) {
+                vars.put("ONLY2", "x");
+            }
+            builds.add(new ItemEventCoordinator.Build(null, subs, "node", Arrays.asList("<item" + i + "/>"), "/item", vars,
+                    new ElOyenteEventAction("node", "" + i)));
+        }
+        ItemEventCoordinator.Build last = ItemEventCoordinator.Build.merge(builds, EventCoalescer.MergePolicy.LAST);
+        assertEquals(Arrays.asList("<item1/>", "<item2/>", "<item3/>"), last.events);
+        assertEquals("3", last.vars.get("ID"));
+        assertEquals("x", last.vars.get("ONLY2"));
+        assertEquals("3", last.action.getItemId());
+        assertEquals("1", ItemEventCoordinator.Build.merge(builds, EventCoalescer.MergePolicy.FIRST).vars.get("ID"));
+        assertEquals("1\n2\n3", ItemEventCoordinator.Build.merge(builds, EventCoalescer.MergePolicy.LIST).vars.get("ID"));
+        assertEquals(EventCoalescer.MergePolicy.LIST, subs.getMergePolicyValue());
+        assertEquals(EventCoalescer.MergePolicy.LAST, new SubscriptionProperties("/item", "node", null).getMergePolicyValue());
+    }
+}
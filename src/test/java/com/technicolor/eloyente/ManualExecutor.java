@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduled executor which runs its tasks only when the test tells it to,
+ * whatever their delay, so the tests do not depend on the wall clock.
+ */
+class ManualExecutor extends ScheduledThreadPoolExecutor {
+
+    private static final Runnable NOTHING = new Runnable() {
+        public void run() {
+        }
+    };
+
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    ManualExecutor() {
+        super(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        // a future which can be cancelled, but never runs by itself
+        ScheduledFuture<?> future = super.schedule(NOTHING, 1, TimeUnit.DAYS);
+        tasks.add(command);
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * Returns the number of tasks waiting to run, cancelled or not.
+     */
+    synchronized int getWaitingCount() {
+        return tasks.size();
+    }
+
+    /**
+     * Runs the tasks scheduled so far, except the cancelled ones, on the
+     * calling thread.
+     *
+     * @return The number of tasks run.
+     */
+    int runAll() {
+        List<Runnable> t;
+        List<Future<?>> f;
+        synchronized (this) {
+            t = new ArrayList<Runnable>(tasks);
+            f = new ArrayList<Future<?>>(futures);
+            tasks.clear();
+            futures.clear();
+        }
+        int n = 0;
+        for (int i = 0; i < t.size(); i++) {
+            if (!f.get(i).isCancelled()) {
+                t.get(i).run();
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class NodeDirectoryTest {
+
+    /**
+     * A directory of a server with fixed nodes.
+     */
+    private static final class Server extends NodeDirectory {
+
+        final Set<String> nodes = new HashSet<String>(Arrays.asList("a", "b"));
+
+        Server(int ttl) {
+            super(ttl);
+        }
+
+        @Override
+        Set<String> discover() {
+            return new HashSet<String>(nodes);
+        }
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        Server directory = new Server(60);
+        assertTrue(directory.exists("a"));
+        assertTrue(directory.exists("b"));
+        assertFalse(directory.exists("c"));
+        assertEquals(1, directory.getDiscoveryCount());
+        assertEquals(3, directory.getLookupCount());
+
+        directory.nodes.add("c");
+        assertFalse(directory.exists("c"));
+        directory.invalidate();
+        assertTrue(directory.exists("c"));
+        assertEquals(2, directory.getDiscoveryCount());
+    }
+
+    @Test
+    public void testUpdates() throws Exception {
+        Server directory = new Server(60);
+        assertEquals(2, directory.getNodes().size());
+        directory.added("c");
+        directory.removed("a");
+        assertTrue(directory.exists("c"));
+        assertFalse(directory.exists("a"));
+        assertEquals(2, directory.getSize());
+        assertEquals(1, directory.getDiscoveryCount());
+    }
+
+    @Test
+    public void testNoCache() throws Exception {
+        Server directory = new Server(0);
+        assertTrue(directory.exists("a"));
+        assertTrue(directory.exists("a"));
+        assertEquals(2, directory.getDiscoveryCount());
+    }
+}
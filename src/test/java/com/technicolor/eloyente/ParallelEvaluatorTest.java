@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ParallelEvaluatorTest {
+
+    private static List<Integer> numbers(int n) {
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            numbers.add(i);
+        }
+        return numbers;
+    }
+
+    private static final class Square implements ParallelEvaluator.Chunk<Integer, Integer> {
+
+        int chunks;
+
+        public synchronized List<Integer> evaluate(List<Integer> items, boolean first) {
+            // the first chunk is evaluated by the calling thread
+            assertEquals(first, !Thread.currentThread().getName().startsWith("ElOyente evaluator"));
+            chunks++;
+            List<Integer> squares = new ArrayList<Integer>();
+            for (Integer i : items) {
+                squares.add(i * i);
+            }
+            return squares;
+        }
+    }
+
+    @Test
+    public void testSequential() throws Exception {
+        ParallelEvaluator parallel = new ParallelEvaluator(2, 100);
+        Square square = new Square();
+        assertEquals(98 * 98, (int) parallel.evaluate(numbers(99), square).get(98));
+        assertEquals(1, square.chunks);
+        assertEquals(0, parallel.getSplitCount());
+        parallel.configure(0);
+        parallel.evaluate(numbers(1000), square);
+        assertEquals(2, square.chunks);
+        parallel.shutdown();
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        ParallelEvaluator parallel = new ParallelEvaluator(2, 100);
+        Square square = new Square();
+        List<Integer> squares = parallel.evaluate(numbers(1000), square);
+        assertEquals(1000, squares.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i * i, (int) squares.get(i));
+        }
+        assertEquals(3, square.chunks);
+        assertEquals(1, parallel.getSplitCount());
+        parallel.shutdown();
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        ParallelEvaluator parallel = new ParallelEvaluator(2, 2);
+        try {
+            parallel.evaluate(numbers(10), new ParallelEvaluator.Chunk<Integer, Integer>() {
+                public List<Integer> evaluate(List<Integer> items, boolean first) {
+                    if (!first) {
+                        throw new IllegalArgumentException("chunk");
+                    }
+                    return items;
+                }
+            });
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertEquals("chunk", ex.getMessage());
+        }
+        parallel.shutdown();
+    }
+}
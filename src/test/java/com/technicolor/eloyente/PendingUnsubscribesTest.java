@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class PendingUnsubscribesTest {
+
+    private final List<String> unsubscribed = new CopyOnWriteArrayList<String>();
+    private final ManualExecutor executor = new ManualExecutor();
+
+    private PendingUnsubscribes pending(int grace) {
+        return new PendingUnsubscribes(executor, grace) {
+            @Override
+            void unsubscribe(String node) {
+                unsubscribed.add(node);
+            }
+        };
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        PendingUnsubscribes pending = pending(1);
+        assertTrue(pending.defer("node"));
+        assertTrue(pending.defer("node"));
+        assertEquals(1, pending.getSize());
+        pending.cancel("node");
+        assertEquals(0, pending.getSize());
+        assertEquals(1, pending.getCancelledCount());
+        // the grace period is over
+        assertEquals(0, executor.runAll());
+        assertTrue(unsubscribed.isEmpty());
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        PendingUnsubscribes pending = pending(1);
+        pending.defer("node");
+        assertTrue(unsubscribed.isEmpty());
+        assertEquals(1, executor.runAll());
+        assertEquals(1, unsubscribed.size());
+        assertEquals("node", unsubscribed.get(0));
+        assertEquals(0, pending.getSize());
+        assertEquals(1, pending.getUnsubscribedCount());
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testFlush() {
+        PendingUnsubscribes pending = pending(30);
+        pending.defer("a");
+        pending.defer("b");
+        pending.flush();
+        assertEquals(2, unsubscribed.size());
+        assertEquals(0, pending.getSize());
+        assertEquals(0, executor.runAll());
+        assertEquals(2, unsubscribed.size());
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testNoGrace() {
+        PendingUnsubscribes pending = pending(0);
+        assertFalse(pending.defer("node"));
+        assertEquals(0, pending.getSize());
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import hudson.EnvVars;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class QueueBackpressureTest {
+
+    private static class Queue extends QueueBackpressure {
+
+        int depth;
+        int reads;
+
+        Queue() {
+            super(null, null, null);
+        }
+
+        @Override
+        int readQueueDepth() {
+            reads++;
+            return depth;
+        }
+    }
+
+    private static ItemEventCoordinator.Build build(boolean lowPriority) throws Exception {
+        SubscriptionProperties subs = new SubscriptionProperties("/item", "node", null, false, 0, null, lowPriority);
+        return new ItemEventCoordinator.Build(null, subs, "node", Arrays.asList("<item/>"), "/item", new EnvVars(), null);
+    }
+
+    @Test
+    public void testSampledOncePerSecond() throws Exception {
+        Queue queue = new Queue();
+        queue.depth = 5;
+        assertEquals(5, queue.getQueueDepth());
+        queue.depth = 6;
+        assertEquals(5, queue.getQueueDepth());
+        assertEquals(1, queue.reads);
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        Queue queue = new Queue();
+        queue.depth = 100000;
+        assertFalse(queue.hold(build(true)));
+        assertEquals(0, queue.reads);
+    }
+
+    @Test
+    public void testWatermarks() throws Exception {
+        Queue queue = new Queue();
+        queue.samplePeriod = 0;
+        queue.configure(100, 20, QueueBackpressure.DegradedMode.DROP_LOW_PRIORITY);
+        queue.depth = 99;
+        assertFalse(queue.isDegraded());
+        queue.depth = 100;
+        assertTrue(queue.isDegraded());
+        queue.depth = 50;
+        assertTrue(queue.isDegraded());
+        assertTrue(queue.hold(build(true)));
+        assertFalse(queue.hold(build(false)));
+        assertEquals(1, queue.getDroppedCount());
+        queue.depth = 20;
+        assertFalse(queue.isDegraded());
+        assertFalse(queue.hold(build(true)));
+    }
+
+    @Test
+    public void testCoalescedBuildHeldBack() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        EventCoalescer coalescer = new EventCoalescer(executor);
+        Queue queue = new Queue();
+        queue.samplePeriod = 0;
+        queue.configure(100, 20, QueueBackpressure.DegradedMode.DROP_LOW_PRIORITY);
+        queue.depth = 100;
+        coalescer.setBackpressure(queue);
+        SubscriptionProperties subs = new SubscriptionProperties("/item", "node", null, false, 5, null, true);
+        coalescer.add(new ItemEventCoordinator.Build(null, subs, "node", Arrays.asList("<item/>"), "/item", new EnvVars(), null));
+        coalescer.add(new ItemEventCoordinator.Build(null, subs, "node", Arrays.asList("<item/>"), "/item", new EnvVars(), null));
+        // the merged build of a low priority subscription is dropped too
+        assertEquals(1, executor.runAll());
+        assertEquals(1, queue.getDroppedCount());
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import hudson.EnvVars;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * A rate limiter recording the builds it releases.
+     */
+    private static class Limiter extends RateLimiter {
+
+        final List<String> released = new CopyOnWriteArrayList<String>();
+
+        Limiter(ScheduledExecutorService executor, EventCoalescer coalescer, int maxDelayed) {
+            super(executor, coalescer, maxDelayed);
+        }
+
+        @Override
+        void release(ItemEventCoordinator.Build build) {
+            released.addAll(build.events);
+        }
+    }
+
+    private static ItemEventCoordinator.Build build(SubscriptionProperties subs, String event) {
+        return new ItemEventCoordinator.Build(new ElOyente(null), subs, "node", Arrays.asList(event), "/item", new EnvVars(), null);
+    }
+
+    @Test
+    public void testTokenBucket() throws Exception {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(60, 0);
+        for (int i = 0; i < 60; i++) {
+            assertTrue(bucket.hasToken(0));
+            bucket.take();
+        }
+        assertFalse(bucket.hasToken(0));
+        assertEquals(SECOND, bucket.waitTime(0), 1000);
+        assertTrue(bucket.hasToken(SECOND));
+        // never more tokens than the capacity
+        assertEquals(0, new RateLimiter.TokenBucket(60, 0).waitTime(3600 * SECOND));
+    }
+
+    @Test
+    public void testNoLimit() throws Exception {
+        RateLimiter limiter = new RateLimiter(null, null);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, limiter.acquire("node", "job", 0));
+        }
+    }
+
+    @Test
+    public void testIdleBucketsEvicted() throws Exception {
+        RateLimiter limiter = new RateLimiter(null, null);
+        limiter.configure(0, 10, 10, RateLimiter.ThrottleAction.DROP);
+        assertEquals(0, limiter.acquire("n1", "j1", 0));
+        assertEquals(0, limiter.acquire("n2", "j2", 0));
+        assertEquals(4, limiter.getBucketCount());
+        assertEquals(0, limiter.acquire("n1", "j1", 30 * SECOND));
+        assertEquals(4, limiter.getBucketCount());
+        // the buckets of n2 and j2 were not used for a minute
+        assertEquals(0, limiter.acquire("n1", "j1", 61 * SECOND));
+        assertEquals(2, limiter.getBucketCount());
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        RateLimiter limiter = new RateLimiter(null, null);
+        limiter.configure(0, 2, 1, RateLimiter.ThrottleAction.DROP);
+        assertEquals(0, limiter.acquire("n1", "j1", 0));
+        // job limit
+        assertTrue(limiter.acquire("n1", "j1", 0) > 0);
+        assertEquals(0, limiter.acquire("n1", "j2", 0));
+        // node limit, the job bucket is not used up
+        long wait = limiter.acquire("n1", "j3", 0);
+        assertEquals(30 * SECOND, wait, 1000);
+        assertEquals(0, limiter.acquire("n2", "j3", 0));
+        assertEquals(0, limiter.acquire("n1", "j4", wait));
+    }
+
+    @Test
+    public void testGlobalLimit() throws Exception {
+        RateLimiter limiter = new RateLimiter(null, null);
+        limiter.configure(3, 0, 0, RateLimiter.ThrottleAction.DELAY);
+        assertEquals(0, limiter.acquire("n1", "j1", 0));
+        assertEquals(0, limiter.acquire("n2", "j2", 0));
+        assertEquals(0, limiter.acquire("n3", "j3", 0));
+        assertEquals(20 * SECOND, limiter.acquire("n4", "j4", 0), 1000);
+        assertEquals(RateLimiter.ThrottleAction.DELAY, limiter.getAction());
+    }
+
+    @Test
+    public void testDelayQueue() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        Limiter limiter = new Limiter(executor, null, 3);
+        limiter.configure(120, 0, 0, RateLimiter.ThrottleAction.DELAY);
+        // use up the tokens, then one comes every 500 ms
+        while (limiter.acquire("node", "", System.nanoTime()) < SECOND / 4) {
+        }
+        SubscriptionProperties subs = new SubscriptionProperties("/item", "node", null, false, 0, null, false);
+        for (int i = 0; i < 5; i++) {
+            limiter.schedule(build(subs, "e" + i));
+        }
+        assertEquals(3, limiter.getDelayedSize());
+        assertEquals(3, limiter.getDelayedCount());
+        assertEquals(2, limiter.getDroppedCount());
+        for (int i = 0; i < 500 && limiter.released.size() < 3; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("e0", "e1", "e2"), limiter.released);
+        assertEquals(0, limiter.getDelayedSize());
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCoalescedBuildWaitsForToken() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        EventCoalescer coalescer = new EventCoalescer(executor);
+        Limiter limiter = new Limiter(executor, coalescer, RateLimiter.DEFAULT_MAX_DELAYED);
+        coalescer.setLimiter(limiter);
+        // a token every 1.5 seconds, the coalescing window lasts 1 second
+        limiter.configure(0, 0, 40, RateLimiter.ThrottleAction.COALESCE);
+        while (limiter.acquire("node", "", System.nanoTime()) < 5 * SECOND / 4) {
+        }
+        SubscriptionProperties subs = new SubscriptionProperties("/item", "node", null, false, 0, null, false);
+        long start = System.nanoTime();
+        limiter.schedule(build(subs, "e0"));
+        limiter.schedule(build(subs, "e1"));
+        for (int i = 0; i < 500 && limiter.released.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("e0", "e1"), limiter.released);
+        // the window closed after 1 second, the build waited for the token
+        assertTrue(System.nanoTime() - start >= 3 * SECOND / 2);
+        // coalesced again when the window closed before the token came
+        assertEquals(3, limiter.getCoalescedCount());
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+   Copyright 2012 Technicolor
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.technicolor.eloyente;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import javax.xml.parsers.*;
+import javax.xml.xpath.*;
+import org.w3c.dom.*;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.xml.sax.InputSource;
+
+public class StreamingXPathFilterTest {
+
+	private static final String[] DOCUMENTS = {
+		"",
+		"<foo><bar>baz</bar></foo>",
+		"<foo id=\"1\"><bar>baz</bar></foo>",
+		"<foo id=\"1\"><bar id=\"1\">baz</bar><bar id=\"2\"/></foo>",
+		"<foo></bar>baz<bar></foo>",
+		"<item id='1'><build branch='main' xmlns='urn:ci'><status>ok</status></build></item>",
+		"<item id='2'><build branch='dev'><status/></build><build branch='main'/></item>",
+		"<a><b><a><c/></a></b></a>",
+		"<a><b x=\"1\"/><b x=\"2\"><c/></b></a>",
+	};
+
+	private static final String[] EXPRESSIONS = {
+		"/foo",
+		"/foo/bar",
+		"/foo[@id='1']/bar[@id='2']",
+		"/foo[@id]/bar[@id=\"1\"]",
+		"/foo/*",
+		"//bar",
+		"//bar[@id='2']",
+		"/item/build[@branch='main']/status",
+		"/item/build[@branch='main']",
+		"//build/status",
+		"/a//c",
+		"/a/c",
+		"//a/c",
+		"/*/b[@x='2']/c",
+		"/a/b[ @x = '1' ]/c",
+	};
+
+	@Test
+	public void testUnsupported() throws Exception {
+		assertNull(StreamingXPathFilter.compile(null));
+		assertNull(StreamingXPathFilter.compile(""));
+		assertNull(StreamingXPathFilter.compile("/"));
+		assertNull(StreamingXPathFilter.compile("foo/bar"));
+		assertNull(StreamingXPathFilter.compile("//foo/bar/text()"));
+		assertNull(StreamingXPathFilter.compile("//foo | //bar"));
+		assertNull(StreamingXPathFilter.compile("/foo[1]"));
+		assertNull(StreamingXPathFilter.compile("/foo[bar='baz']"));
+		assertNull(StreamingXPathFilter.compile("/p:foo"));
+		assertNull(StreamingXPathFilter.compile("/child::foo"));
+	}
+
+	@Test
+	public void testSameResultAsDOM() throws Exception {
+		for (String expression : EXPRESSIONS) {
+			StreamingXPathFilter filter = StreamingXPathFilter.compile(expression);
+			assertNotNull(expression, filter);
+			XPathExpression xpath = XPathFactory.newInstance().newXPath().compile(expression);
+			for (String xml : DOCUMENTS) {
+				boolean expected = dom(xpath, xml);
+				assertEquals(expression + " on " + xml, Boolean.valueOf(expected), filter.test(xml, false));
+				if (expected) {
+					assertEquals(expression + " on " + xml, Boolean.TRUE, filter.test(xml, true));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFallback() throws Exception {
+		StreamingXPathFilter filter = StreamingXPathFilter.compile("//foo");
+		assertNull(filter.test("<p:foo xmlns:p='urn:p'/>", false));
+		assertNull(filter.test("<!DOCTYPE foo><foo/>", false));
+		assertEquals(Boolean.FALSE, filter.test(null, false));
+	}
+
+	@Test
+	public void testHandlerUsesStreaming() throws Exception {
+		XPathExpressionHandler eh = new XPathExpressionHandler("/item/build[@branch='main']");
+		XMPPEvent event = new XMPPEvent(DOCUMENTS[5], true);
+		assertTrue(eh.test(event));
+		assertFalse(event.isParsed());
+		assertTrue(eh.test(DOCUMENTS[6]));
+		assertFalse(eh.test(DOCUMENTS[4]));
+	}
+
+	@Test
+	public void testEquality() throws Exception {
+		assertNull(StreamingXPathFilter.compile("/item/push").getEquality());
+		assertNull(StreamingXPathFilter.compile("/item/push[@repo]").getEquality());
+		assertNull(StreamingXPathFilter.compile("/item/push[@repo='a'][@tag='b']").getEquality());
+		assertNull(StreamingXPathFilter.compile("/item/push[@repo='a']/commit").getEquality());
+		StreamingXPathFilter.Equality eq = StreamingXPathFilter.compile("//push[@tag][@repo=\"it's\"]").getEquality();
+		assertEquals("//push[@tag]", eq.path);
+		assertEquals("repo", eq.attribute);
+		assertEquals("it's", eq.value);
+		eq = StreamingXPathFilter.compile("/*[@a='1']/push[@repo='x']").getEquality();
+		assertEquals("/*[@a='1']/push", eq.path);
+	}
+
+	@Test
+	public void testCollect() throws Exception {
+		StreamingXPathFilter path = StreamingXPathFilter.compile("/item/push");
+		String xml = "<item><push repo='a'/><push/><push repo='b'><push repo='c'/></push></item>";
+		assertEquals(new HashSet<String>(Arrays.asList("a", "b")), path.collect(xml, "repo"));
+		assertTrue(path.collect("<item><push repo='a'/>", "repo").isEmpty());
+		assertNull(path.collect("<item><push p:repo='a' xmlns:p='urn:p'/></item>", "repo"));
+	}
+
+	private static boolean dom(XPathExpression xpath, String xml) throws Exception {
+		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		builder.setErrorHandler(null);
+		Document doc;
+		try {
+			doc = builder.parse(new InputSource(new StringReader(xml)));
+		} catch (Exception e) {
+			return false;
+		}
+		return ((NodeList)xpath.evaluate(doc, XPathConstants.NODESET)).getLength() > 0;
+	}
+}
+
+// vim: set tabstop=4 softtabstop=4 shiftwidth=4 noexpandtab :
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Technicolor
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.technicolor.eloyente;
+
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class SubscriptionRegistryTest {
+
+    /**
+     * A registry of a server with fixed subscriptions.
+     */
+    private static class Server extends SubscriptionRegistry {
+
+        final Map<String, String> subscriptions = new HashMap<String, String>();
+
+        Server(int period) {
+            super(period);
+            subscriptions.put("a", "1");
+        }
+
+        @Override
+        Map<String, String> fetch() {
+            return new HashMap<String, String>(subscriptions);
+        }
+    }
+
+    @Test
+    public void testRecorded() throws Exception {
+        Server registry = new Server(60);
+        assertTrue(registry.isSubscribed("a"));
+        assertEquals("1", registry.getSubscriptionId("a"));
+        assertFalse(registry.isSubscribed("b"));
+        assertEquals(1, registry.getReconciliationCount());
+
+        registry.subscribed("b", null);
+        assertEquals("", registry.getSubscriptionId("b"));
+        registry.unsubscribed("a");
+        assertFalse(registry.isSubscribed("a"));
+        assertEquals(1, registry.getSize());
+        assertEquals(1, registry.getReconciliationCount());
+    }
+
+    @Test
+    public void testReconcile() throws Exception {
+        Server registry = new Server(0);
+        assertTrue(registry.isSubscribed("a"));
+        registry.subscriptions.remove("a");
+        assertFalse(registry.isSubscribed("a"));
+        assertEquals(2, registry.getReconciliationCount());
+    }
+
+    @Test
+    public void testChangeDuringReconcile() throws Exception {
+        final Server registry = new Server(60) {
+            @Override
+            Map<String, String> fetch() {
+                Map<String, String> fetched = super.fetch();
+                if (getReconciliationCount() == 0) {
+                    // subscribed while the subscriptions are retrieved
+                    subscriptions.put("b", "2");
+                    subscribed("b", null);
+                }
+                return fetched;
+            }
+        };
+        // the result is kept, with the subscription it did not have
+        assertEquals("", registry.getSubscriptionId("b"));
+        assertTrue(registry.isSubscribed("a"));
+        assertEquals(1, registry.getReconciliationCount());
+    }
+
+    @Test
+    public void testUnsubscribeDuringReconcile() throws Exception {
+        final Server registry = new Server(60) {
+            @Override
+            Map<String, String> fetch() {
+                Map<String, String> fetched = super.fetch();
+                // unsubscribed after the subscriptions were retrieved
+                unsubscribed("a");
+                return fetched;
+            }
+        };
+        assertFalse(registry.isSubscribed("a"));
+        assertEquals(0, registry.getSize());
+        assertEquals(1, registry.getReconciliationCount());
+    }
+}
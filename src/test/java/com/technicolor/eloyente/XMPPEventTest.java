@@ -0,0 +1,86 @@
+/*
+   Copyright 2012 Technicolor
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.technicolor.eloyente;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.Arrays;
+
+public class XMPPEventTest {
+
+	private static final String XML = "<item id=\"1\"><foo><bar>baz</bar></foo></item>";
+
+	@Test
+	public void testNull() throws Exception {
+		XMPPEvent event = new XMPPEvent(null);
+		assertNull(event.getXML());
+		assertNull(event.getDocument());
+	}
+
+	@Test
+	public void testMalformed() throws Exception {
+		XMPPEvent event = new XMPPEvent("<foo></bar>baz<bar></foo>");
+		assertNull(event.getDocument());
+		assertNull(event.getDocument());
+	}
+
+	@Test
+	public void testParsedOnce() throws Exception {
+		XMPPEvent event = new XMPPEvent(XML);
+		assertEquals(XML, event.getXML());
+		assertNotNull(event.getDocument());
+		assertSame(event.getDocument(), event.getDocument());
+	}
+
+	@Test
+	public void testSharedBetweenExpressions() throws Exception {
+		XMPPEvent event = new XMPPEvent(XML);
+		XPathExpressionHandler filter = new XPathExpressionHandler("//foo");
+		Variable var = new Variable("BAR", "//foo/bar/text()");
+		assertTrue(filter.test(event));
+		assertEquals("baz", var.resolve(event));
+		assertEquals(filter.evaluate(XML), filter.evaluate(event));
+	}
+
+	@Test
+	public void testTopLevelNames() throws Exception {
+		XMPPEvent event = new XMPPEvent("<item id=\"1\"><push><repo/></push><tag/><push/></item>");
+		assertEquals(Arrays.asList("item", "push", "tag", "push"), event.getTopLevelNames());
+		assertFalse(event.isParsed());
+
+		XMPPEvent parsed = new XMPPEvent(XML);
+		parsed.getDocument();
+		assertEquals(Arrays.asList("item", "foo"), parsed.getTopLevelNames());
+
+		assertNull(new XMPPEvent("<p:item xmlns:p=\"urn:p\"/>").getTopLevelNames());
+		assertNull(new XMPPEvent("<foo></bar>").getTopLevelNames());
+	}
+
+	@Test
+	public void testEvaluatedOnce() throws Exception {
+		XMPPEvent event = new XMPPEvent(XML);
+		Variable v1 = new Variable("FOO", "//foo");
+		Variable v2 = new Variable("ALSO_FOO", "//foo");
+		String result = v1.resolve(event);
+		assertEquals("<foo><bar>baz</bar></foo>", result);
+		assertSame(result, v2.resolve(event));
+		assertSame(result, event.getEvaluation(v1.envExpr.getCompiledExpression()));
+		assertNull(new XMPPEvent(XML).getEvaluation(v1.envExpr.getCompiledExpression()));
+	}
+}
+
+// vim: set tabstop=4 softtabstop=4 shiftwidth=4 noexpandtab :
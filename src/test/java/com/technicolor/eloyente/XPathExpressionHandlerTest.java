@@ -21,6 +21,9 @@ import org.junit.Test;
 
 import javax.xml.parsers.*;
 import javax.xml.xpath.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
 public class XPathExpressionHandlerTest {
 
@@ -163,6 +166,46 @@ public class XPathExpressionHandlerTest {
 		assertEquals("baz", eh.evaluate(xml));
 	}
 
+	@Test
+	public void testSharedCompilation() throws Exception {
+		XPathExpressionHandler eh1 = new XPathExpressionHandler("//commit/branch");
+		XPathExpressionHandler eh2 = new XPathExpressionHandler("//commit/branch");
+		XPathExpressionHandler eh3 = new XPathExpressionHandler("//commit/id");
+		assertSame(eh1.getCompiledExpression(), eh2.getCompiledExpression());
+		assertNotSame(eh1.getCompiledExpression(), eh3.getCompiledExpression());
+		eh2.setExpression("//commit/id");
+		assertSame(eh3.getCompiledExpression(), eh2.getCompiledExpression());
+		assertEquals("//commit/branch", eh1.getCompiledExpression().getExpression());
+		assertEquals(null, new XPathExpressionHandler().getCompiledExpression());
+	}
+
+	@Test
+	public void testConcurrentEvaluation() throws Exception {
+		final XPathExpressionHandler filter = new XPathExpressionHandler("/item/foo/bar[@id='2']");
+		final XPathExpressionHandler var = new XPathExpressionHandler("//foo/bar[@id]/text()");
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 200; i++) {
+				final int n = i;
+				results.add(pool.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						String xml = "<item id=\"" + n + "\"><foo><bar id=\"" + (n % 3) + "\">" + n + "</bar></foo></item>";
+						XMPPEvent event = new XMPPEvent(xml);
+						return (filter.test(event) == (n % 3 == 2))
+								&& String.valueOf(n).equals(var.evaluate(event))
+								&& String.valueOf(n).equals(var.evaluate(xml));
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
 }
 
 // vim: set tabstop=4 softtabstop=4 shiftwidth=4 noexpandtab :